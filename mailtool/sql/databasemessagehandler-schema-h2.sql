@@ -0,0 +1,82 @@
+-- mailtool - a package for processing IMAP mail folders
+--
+-- Copyright (C) 2017 David Harper at obliquity.com
+-- 
+-- This library is free software; you can redistribute it and/or
+-- modify it under the terms of the GNU Library General Public
+-- License as published by the Free Software Foundation; either
+-- version 2 of the License, or (at your option) any later version.
+--
+-- This library is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+-- Library General Public License for more details.
+-- 
+-- You should have received a copy of the GNU Library General Public
+-- License along with this library; if not, write to the
+-- Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+-- Boston, MA  02111-1307, USA.
+--
+-- See the COPYING file located in the top-level-directory of
+-- the archive of this library for complete text of license.
+
+-- The H2 version of databasemessagehandler-schema.sql, for an embedded index.  Names
+-- which are reserved words in H2 are quoted in upper case, which is how H2 stores the
+-- unquoted ones, and VARCHAR_IGNORECASE matches the MySQL collation's case-insensitivity.
+--
+-- DatabaseMessageHandler runs this script itself when the index is empty, so it only
+-- creates what is missing and never drops anything.
+
+CREATE TABLE IF NOT EXISTS folder (
+  id int NOT NULL,
+  name varchar_ignorecase(255) NOT NULL,
+  PRIMARY KEY (id),
+  CONSTRAINT folder_name UNIQUE (name)
+);
+
+CREATE TABLE IF NOT EXISTS message (
+  id int GENERATED BY DEFAULT AS IDENTITY,
+  folder_id int NOT NULL,
+  uidvalidity bigint DEFAULT NULL,
+  uid bigint DEFAULT NULL,
+  "FROM" varchar(255) NOT NULL,
+  message_id varchar(255) DEFAULT NULL,
+  sent_date timestamp DEFAULT NULL,
+  subject varchar(255) DEFAULT NULL,
+  "SIZE" int NOT NULL DEFAULT 0,
+  PRIMARY KEY (id),
+  CONSTRAINT folder_id_uidvalidity_uid UNIQUE (folder_id, uidvalidity, uid),
+  CONSTRAINT message_ibfk_1 FOREIGN KEY (folder_id) REFERENCES folder (id)
+);
+
+CREATE INDEX IF NOT EXISTS sent_date_folder_id ON message (sent_date, folder_id);
+CREATE INDEX IF NOT EXISTS folder_id_sent_date ON message (folder_id, sent_date);
+
+CREATE TABLE IF NOT EXISTS attachment (
+  id int GENERATED BY DEFAULT AS IDENTITY,
+  message_id int NOT NULL,
+  mime_type varchar(255) NOT NULL,
+  filename varchar(255) DEFAULT NULL,
+  "SIZE" int NOT NULL,
+  PRIMARY KEY (id),
+  CONSTRAINT attachment_ibfk_1 FOREIGN KEY (message_id) REFERENCES message (id) ON DELETE CASCADE
+);
+
+CREATE TABLE IF NOT EXISTS address (
+  id int NOT NULL,
+  address varchar_ignorecase(255) NOT NULL,
+  PRIMARY KEY (id),
+  CONSTRAINT address_address UNIQUE (address)
+);
+
+CREATE TABLE IF NOT EXISTS recipient (
+  id int GENERATED BY DEFAULT AS IDENTITY,
+  message_id int NOT NULL,
+  type varchar(3) NOT NULL CHECK (type IN ('TO', 'CC', 'BCC')),
+  address_id int NOT NULL,
+  PRIMARY KEY (id),
+  CONSTRAINT recipient_ibfk_1 FOREIGN KEY (message_id) REFERENCES message (id) ON DELETE CASCADE,
+  CONSTRAINT recipient_ibfk_2 FOREIGN KEY (address_id) REFERENCES address (id)
+);
+
+CREATE INDEX IF NOT EXISTS recipient_address_id ON recipient (address_id);
@@ -36,12 +36,15 @@ CREATE TABLE `folder` (
 CREATE TABLE `message` (
   `id` int unsigned NOT NULL AUTO_INCREMENT,
   `folder_id` int unsigned NOT NULL,
+  `uidvalidity` bigint unsigned DEFAULT NULL,
+  `uid` bigint unsigned DEFAULT NULL,
   `from` varchar(255) NOT NULL,
   `message_id` varchar(255) DEFAULT NULL,
   `sent_date` datetime DEFAULT NULL,
   `subject` varchar(255) DEFAULT NULL,
   `size` int unsigned NOT NULL DEFAULT '0',
   PRIMARY KEY (`id`),
+  UNIQUE KEY `folder_id_uidvalidity_uid` (`folder_id`,`uidvalidity`,`uid`),
   KEY `sent_date_folder_id` (`sent_date`,`folder_id`),
   KEY `folder_id_sent_date` (`folder_id`,`sent_date`),
   CONSTRAINT `message_ibfk_1` FOREIGN KEY (`folder_id`) REFERENCES `folder` (`id`)
@@ -55,7 +58,7 @@ CREATE TABLE `attachment` (
   `size` int unsigned NOT NULL,
   PRIMARY KEY (`id`),
   KEY `message_id` (`message_id`),
-  CONSTRAINT `attachment_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`)
+  CONSTRAINT `attachment_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`) ON DELETE CASCADE
 ) ENGINE=InnoDB CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
 CREATE TABLE `address` (
@@ -73,6 +76,6 @@ CREATE TABLE `recipient` (
   PRIMARY KEY (`id`),
   KEY `message_id` (`message_id`),
   KEY `address_id` (`address_id`),
-  CONSTRAINT `recipient_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`),
+  CONSTRAINT `recipient_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`) ON DELETE CASCADE,
   CONSTRAINT `recipient_ibfk_2` FOREIGN KEY (`address_id`) REFERENCES `address` (`id`)
 ) ENGINE=InnoDB CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
@@ -0,0 +1,38 @@
+-- mailtool - a package for processing IMAP mail folders
+--
+-- Copyright (C) 2017 David Harper at obliquity.com
+-- 
+-- This library is free software; you can redistribute it and/or
+-- modify it under the terms of the GNU Library General Public
+-- License as published by the Free Software Foundation; either
+-- version 2 of the License, or (at your option) any later version.
+--
+-- This library is distributed in the hope that it will be useful,
+-- but WITHOUT ANY WARRANTY; without even the implied warranty of
+-- MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+-- Library General Public License for more details.
+-- 
+-- You should have received a copy of the GNU Library General Public
+-- License along with this library; if not, write to the
+-- Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+-- Boston, MA  02111-1307, USA.
+--
+-- See the COPYING file located in the top-level-directory of
+-- the archive of this library for complete text of license.
+
+-- Upgrades a database created before messages were keyed on their folder's UIDVALIDITY
+-- and UID.  Existing messages are left with NULL UIDs, and are replaced the next time
+-- their folder is indexed in incremental mode.
+
+ALTER TABLE `message`
+  ADD COLUMN `uidvalidity` bigint unsigned DEFAULT NULL AFTER `folder_id`,
+  ADD COLUMN `uid` bigint unsigned DEFAULT NULL AFTER `uidvalidity`,
+  ADD UNIQUE KEY `folder_id_uidvalidity_uid` (`folder_id`,`uidvalidity`,`uid`);
+
+ALTER TABLE `attachment`
+  DROP FOREIGN KEY `attachment_ibfk_1`,
+  ADD CONSTRAINT `attachment_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`) ON DELETE CASCADE;
+
+ALTER TABLE `recipient`
+  DROP FOREIGN KEY `recipient_ibfk_1`,
+  ADD CONSTRAINT `recipient_ibfk_1` FOREIGN KEY (`message_id`) REFERENCES `message` (`id`) ON DELETE CASCADE;
@@ -31,10 +31,37 @@ import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 public class DatabaseConnectionManager {
+	private static final Map<String, DatabaseConnectionPool> pools = new HashMap<String, DatabaseConnectionPool>();
+	
 	public static Connection getConnection(Object target) throws DatabaseConnectionManagerException, IOException, ClassNotFoundException, SQLException  {
+		return getConnection(getPropertiesFile(target));
+	}
+	
+	/*
+	 * Returns the connection pool for the database named by the target's .dbprops file.
+	 * Every caller using the same file shares the same pool.
+	 */
+	public static synchronized DatabaseConnectionPool getConnectionPool(Object target) throws DatabaseConnectionManagerException, IOException, ClassNotFoundException {
+		File propsFile = getPropertiesFile(target);
+		
+		String key = propsFile.getCanonicalPath();
+		
+		DatabaseConnectionPool pool = pools.get(key);
+		
+		if (pool == null) {
+			pool = new DatabaseConnectionPool(loadProperties(propsFile));
+			pools.put(key, pool);
+		}
+		
+		return pool;
+	}
+	
+	private static File getPropertiesFile(Object target) throws DatabaseConnectionManagerException {
 		String className = target.getClass().getName().toLowerCase();
 		
 		String propsFilePropertyName = className + ".dbprops";
@@ -44,19 +71,21 @@ public class DatabaseConnectionManager {
 		if (propsFileName == null)
 			throw new DatabaseConnectionManagerException("Database connection filename was not specified via property " + propsFilePropertyName);
 		
-		File propsFile = new File(propsFileName);
-				
-		return getConnection(propsFile);
+		return new File(propsFileName);
 	}
 	
 	public static Connection getConnection(File propsFile) throws IOException, ClassNotFoundException, SQLException {
+		return getConnection(loadProperties(propsFile));
+	}
+	
+	private static Properties loadProperties(File propsFile) throws IOException {
 		InputStream is = new FileInputStream(propsFile);
 
 		Properties props = new Properties();
 		props.load(is);
 		is.close();
-				
-		return getConnection(props);
+		
+		return props;
 	}
 	
 	public static Connection getConnection(Properties props) throws ClassNotFoundException, SQLException  {
@@ -0,0 +1,208 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ * A fixed-size pool of JDBC connections, configured from the same properties as
+ * DatabaseConnectionManager.getConnection(Properties).
+ * 
+ * The property pool.maxsize limits the number of open connections (default 16).  When
+ * they are all in use, acquire() waits until one is released, for at most pool.timeout
+ * seconds (default 60), and then fails rather than hanging for good.  A connection which
+ * has been idle for more than pool.validateafter seconds (default 30) is validated when
+ * it is taken from the pool, and closed and replaced if it fails.
+ * 
+ * The pool's lock is only held to take a connection out or put one back.  Validating,
+ * connecting, rolling back and closing all happen outside it, so one slow round trip
+ * never holds up the other threads.  A new connection is counted as open while it is
+ * being made, so the limit still holds.
+ */
+public class DatabaseConnectionPool {
+	private static final int VALIDATION_TIMEOUT = 5;
+	
+	private final Properties props;
+	private final int maxSize;
+	private final long timeout;
+	private final long validateAfter;
+	private final Deque<IdleConnection> idleConnections = new ArrayDeque<IdleConnection>();
+	
+	private int openCount = 0;
+	private boolean closed = false;
+	
+	public DatabaseConnectionPool(Properties props) throws ClassNotFoundException {
+		this.props = props;
+		this.maxSize = Integer.parseInt(props.getProperty("pool.maxsize", "16"));
+		this.timeout = 1000L * Integer.parseInt(props.getProperty("pool.timeout", "60"));
+		this.validateAfter = 1000L * Integer.parseInt(props.getProperty("pool.validateafter", "30"));
+		
+		String driver = props.getProperty("driver");
+		
+		if (driver != null)
+			Class.forName(driver);
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public SqlDialect getDialect() {
+		return SqlDialect.forURL(props.getProperty("url"));
+	}
+	
+	public Connection acquire() throws SQLException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		while (true) {
+			IdleConnection idle = reserve(deadline);
+			
+			if (idle == null) {
+				// A reservation for a new connection.
+				try {
+					return DatabaseConnectionManager.getConnection(props);
+				} catch (SQLException | ClassNotFoundException e) {
+					forget();
+					throw e instanceof SQLException ? (SQLException)e : new SQLException(e);
+				}
+			}
+			
+			if (System.currentTimeMillis() - idle.releasedAt < validateAfter || idle.conn.isValid(VALIDATION_TIMEOUT))
+				return idle.conn;
+			
+			closeQuietly(idle.conn);
+			forget();
+		}
+	}
+	
+	/*
+	 * Takes an idle connection, or returns null having counted a new one as open, waiting
+	 * until one or the other is possible.
+	 */
+	private synchronized IdleConnection reserve(long deadline) throws SQLException {
+		while (true) {
+			if (closed)
+				throw new SQLException("The connection pool has been closed");
+			
+			IdleConnection idle = idleConnections.pollFirst();
+			
+			if (idle != null)
+				return idle;
+			
+			if (openCount < maxSize) {
+				openCount++;
+				return null;
+			}
+			
+			long remaining = deadline - System.currentTimeMillis();
+			
+			if (remaining <= 0)
+				throw new SQLException("Timed out waiting for a database connection, since all " + maxSize +
+						" allowed by pool.maxsize are in use");
+			
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted whilst waiting for a database connection", e);
+			}
+		}
+	}
+	
+	private synchronized void forget() {
+		openCount--;
+		notifyAll();
+	}
+	
+	/*
+	 * Returns a connection to the pool.  Any transaction left open on it is rolled back,
+	 * so that the next user starts cleanly.
+	 */
+	public void release(Connection conn) {
+		boolean reusable;
+		
+		try {
+			reusable = !conn.isClosed();
+			
+			if (reusable && !conn.getAutoCommit())
+				conn.rollback();
+		} catch (SQLException e) {
+			reusable = false;
+		}
+		
+		synchronized (this) {
+			if (reusable && !closed) {
+				idleConnections.addFirst(new IdleConnection(conn));
+				notifyAll();
+				return;
+			}
+		}
+		
+		closeQuietly(conn);
+		forget();
+	}
+	
+	public void close() {
+		List<IdleConnection> connections;
+		
+		synchronized (this) {
+			closed = true;
+			
+			connections = new ArrayList<IdleConnection>(idleConnections);
+			
+			idleConnections.clear();
+			
+			openCount -= connections.size();
+			
+			notifyAll();
+		}
+		
+		for (IdleConnection idle : connections)
+			closeQuietly(idle.conn);
+	}
+	
+	private static void closeQuietly(Connection conn) {
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			// Nothing more can be done with it.
+		}
+	}
+	
+	private static class IdleConnection {
+		final Connection conn;
+		final long releasedAt = System.currentTimeMillis();
+		
+		IdleConnection(Connection conn) {
+			this.conn = conn;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.database;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/*
+ * The differences between the databases which can hold the message index: how an
+ * identifier which is also a reserved word is quoted, and which schema script creates
+ * the tables.  The dialect is chosen from the JDBC URL.
+ * 
+ * MYSQL quotes with backticks.  H2, which can run embedded with a URL such as
+ * jdbc:h2:~/mailtool/index, quotes with double quotes.  H2 folds unquoted identifiers
+ * to upper case, so quoted ones are written in upper case to match.
+ */
+public enum SqlDialect {
+	MYSQL("", "`", false),
+	H2("-h2", "\"", true);
+	
+	private final String schemaSuffix;
+	private final String quote;
+	private final boolean upperCase;
+	
+	private SqlDialect(String schemaSuffix, String quote, boolean upperCase) {
+		this.schemaSuffix = schemaSuffix;
+		this.quote = quote;
+		this.upperCase = upperCase;
+	}
+	
+	public static SqlDialect forURL(String url) {
+		if (url != null && url.startsWith("jdbc:h2:"))
+			return H2;
+		
+		return MYSQL;
+	}
+	
+	public String quote(String identifier) {
+		return quote + (upperCase ? identifier.toUpperCase(Locale.ROOT) : identifier) + quote;
+	}
+	
+	/*
+	 * Returns the name of the schema script for this dialect, given the name of the MySQL
+	 * script, e.g. databasemessagehandler-schema-h2.sql for databasemessagehandler-schema.
+	 */
+	public String getSchemaResource(String baseName) {
+		return "/" + baseName + schemaSuffix + ".sql";
+	}
+	
+	/*
+	 * Runs the schema script for this dialect if the named table does not exist yet.
+	 * Returns true if the tables were created.
+	 */
+	public boolean createSchemaIfMissing(Connection conn, String baseName, String table) throws SQLException, IOException {
+		if (tableExists(conn, table))
+			return false;
+		
+		String resource = getSchemaResource(baseName);
+		
+		InputStream is = SqlDialect.class.getResourceAsStream(resource);
+		
+		if (is == null)
+			throw new IOException("Cannot find the schema script " + resource + " on the classpath");
+		
+		runScript(conn, is);
+		
+		return true;
+	}
+	
+	private boolean tableExists(Connection conn, String table) throws SQLException {
+		DatabaseMetaData metadata = conn.getMetaData();
+		
+		String name = upperCase ? table.toUpperCase(Locale.ROOT) : table;
+		
+		ResultSet rs = metadata.getTables(conn.getCatalog(), null, name, new String[] { "TABLE" });
+		
+		boolean exists = rs.next();
+		
+		rs.close();
+		
+		return exists;
+	}
+	
+	/*
+	 * Runs a script of statements separated by semicolons at the ends of lines, skipping
+	 * the lines which are -- comments.
+	 */
+	private static void runScript(Connection conn, InputStream is) throws SQLException, IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+		
+		boolean autoCommit = conn.getAutoCommit();
+		
+		conn.setAutoCommit(true);
+		
+		Statement stmt = conn.createStatement();
+		
+		StringBuilder sql = new StringBuilder();
+		
+		String line;
+		
+		while ((line = reader.readLine()) != null) {
+			String trimmed = line.strip();
+			
+			if (trimmed.isEmpty() || trimmed.startsWith("--"))
+				continue;
+			
+			sql.append(line).append('\n');
+			
+			if (trimmed.endsWith(";")) {
+				sql.setLength(sql.lastIndexOf(";"));
+				stmt.execute(sql.toString());
+				sql.setLength(0);
+			}
+		}
+		
+		reader.close();
+		stmt.close();
+		
+		conn.setAutoCommit(autoCommit);
+	}
+}
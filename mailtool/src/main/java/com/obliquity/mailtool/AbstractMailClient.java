@@ -26,13 +26,12 @@ package com.obliquity.mailtool;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Date;
-import java.util.Properties;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import javax.mail.Address;
-import javax.mail.Authenticator;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
@@ -40,70 +39,125 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
-import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.URLName;
 import javax.mail.internet.MimeMessage;
 
 public abstract class AbstractMailClient {
 	private Folder mainFolder = null;
+	private String mainFolderURI = null;
+	private StoreLease mainLease = null;
+	private final Map<Folder, StoreLease> folderLeases = new IdentityHashMap<Folder, StoreLease>();
 	
 	public AbstractMailClient(String folderURI) throws URISyntaxException, MessagingException {
-		mainFolder = connectToFolder(folderURI);
+		mainFolderURI = folderURI;
+		mainLease = leaseStore(folderURI);
+		mainFolder = mainLease.getFolder();
 	}
 		
 	protected Folder getMainFolder() {
 		return mainFolder;
 	}
 	
+	/*
+	 * Returns the main folder's connection to the pool.  The main folder must not be used
+	 * after this.
+	 */
+	protected void releaseMainFolder() {
+		mainLease.close();
+	}
+	
+	protected String getMainFolderURI() {
+		return mainFolderURI;
+	}
+	
 	protected Store getStore() {
 		return mainFolder.getStore();
 	}
 	
+	/*
+	 * Returns the folder named by the URI, on a store borrowed from the shared connection
+	 * pool.  The caller should pass the folder to releaseFolder() when it has finished with
+	 * it, so that the store goes back to the pool.
+	 */
 	protected Folder connectToFolder(String folderURI)
 			throws URISyntaxException, MessagingException {
-		URI uri = new URI(folderURI);
-
-		String scheme = uri.getScheme();
-		String user = uri.getUserInfo();
-		String host = uri.getHost();
-		int port = uri.getPort();
-		String path = uri.getPath();
-
-		if (path.startsWith("/"))
-			path = path.substring(1);
-
-		Properties props = new Properties();
-
-		props.put("mail." + scheme + ".host", host);
-		props.put("mail." + scheme + ".user", user);
-
-		if (port > 0)
-			props.put("mail." + scheme + ".port", port);
-
-		Authenticator auth = new SimpleAuthenticator(user);
-
-		if (Boolean.getBoolean("mailtool.useinsecuressl")) {
-			System.err.println("WARNING: Using insecure SSL, server certificate will not be checked.");
-		    props.setProperty("mail.imap.ssl.enable", "true");
-		    props.setProperty("mail.imap.ssl.socketFactory.class",
-							"com.obliquity.mailtool.ssl.InsecureSSLSocketFactory");
-		    props.setProperty("mail.imap.ssl.socketFactory.fallback", "false");
-
-		}
+		StoreLease lease = leaseStore(folderURI);
 		
-		props.put("mail.mime.allowutf8", true);
+		try {
+			Folder folder = lease.getFolder();
+			
+			folderLeases.put(folder, lease);
+			
+			return folder;
+		} catch (MessagingException | RuntimeException e) {
+			lease.close();
+			throw e;
+		}
+	}
+	
+	/*
+	 * Closes a folder returned by connectToFolder(), if it is open, and returns its store
+	 * to the pool.
+	 */
+	protected void releaseFolder(Folder folder) {
+		closeQuietly(folder);
 		
-		Session session = Session.getInstance(props, auth);
-
-		boolean debug = Boolean.getBoolean("mail.debug");
-
-		session.setDebug(debug);
-
-		Store store = session.getStore(scheme);
-
-		store.connect();
+		StoreLease lease = folderLeases.remove(folder);
 		
-		return path.length() > 0 ? store.getFolder(path) : store.getDefaultFolder();
+		if (lease != null)
+			lease.close();
+	}
+	
+	/*
+	 * Borrows a connected store from the shared connection pool.  The caller should close
+	 * the lease when it has finished with the store, so that other tasks can reuse it.
+	 */
+	protected StoreLease leaseStore(String folderURI)
+			throws URISyntaxException, MessagingException {
+		return getConnectionPool().acquire(folderURI);
+	}
+	
+	/*
+	 * Closes the folder if it is open, reporting rather than throwing any failure, for use
+	 * when the folder is being given up after an error.
+	 */
+	protected static void closeQuietly(Folder folder) {
+		try {
+			if (folder.isOpen())
+				folder.close(false);
+		} catch (MessagingException e) {
+			System.err.println("Failed to close " + folder.getFullName() + " : " + e.getMessage());
+		}
+	}
+	
+	protected StoreConnectionPool getConnectionPool() {
+		return StoreConnectionPool.getSharedPool();
+	}
+	
+	/*
+	 * Creates an instance of the named MessageHandler class using its no-argument constructor.
+	 */
+	protected static MessageHandler createMessageHandler(String handlerName) throws ReflectiveOperationException {
+		Class<?> handlerClass = Class.forName(handlerName);
+		
+		Object o = handlerClass.getDeclaredConstructor().newInstance();
+		
+		if (o instanceof MessageHandler)
+			return (MessageHandler)o;
+		else
+			throw new ClassCastException(handlerName + " is not a MessageHandler");
+	}
+	
+	/*
+	 * Identifies a folder by server, user and full name, leaving out any password in the
+	 * URI, for use as a key in files which persist state between runs.
+	 */
+	protected static String getFolderKey(Folder folder) {
+		URLName url = folder.getStore().getURLName();
+		
+		return url.getProtocol() + "://" + url.getUsername() + "@" + url.getHost() + ":" + url.getPort() +
+				"/" + folder.getFullName();
 	}
 	
 	protected void displayMessageHeaders(Message message, PrintStream ps) throws MessagingException {
@@ -144,7 +198,7 @@ public abstract class AbstractMailClient {
 			int messageSize = msg.getSize();
 			ps.println("Size:    " + messageSize);
 
-			Object content = message.getContent();
+			Object content = msg.isMimeType("multipart/*") ? message.getContent() : null;
 			
 			if (content instanceof Multipart) {
 				Multipart mp = (Multipart)content;
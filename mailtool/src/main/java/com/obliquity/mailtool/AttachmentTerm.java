@@ -25,12 +25,19 @@
 package com.obliquity.mailtool;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
 import javax.mail.internet.MimeMessage;
+import javax.mail.search.AndTerm;
+import javax.mail.search.NotTerm;
+import javax.mail.search.OrTerm;
 import javax.mail.search.SearchTerm;
 
 public class AttachmentTerm extends SearchTerm {
@@ -47,6 +54,11 @@ public class AttachmentTerm extends SearchTerm {
 		MimeMessage message = (MimeMessage)msg;
 		
 		try {
+			// A message which is not multipart has no attachments.  Checking this first means
+			// that only the MIME structure of the message is ever needed, never its body.
+			if (!message.isMimeType("multipart/*"))
+				return false;
+			
 			Object content = message.getContent();
 			
 			if (content instanceof Multipart) {
@@ -71,5 +83,111 @@ public class AttachmentTerm extends SearchTerm {
 		
 		return false;
 	}
-
+	
+	/*
+	 * Searches a folder using a term which may contain AttachmentTerms.
+	 * 
+	 * The IMAP server cannot search by attachment type, so a term containing an AttachmentTerm
+	 * would normally be evaluated entirely on the client, one message at a time.  Instead, when
+	 * the AttachmentTerms are combined with the other criteria by AND, the other criteria are
+	 * sent to the server as an ordinary search, and only the resulting candidates are checked
+	 * for attachments, using their BODYSTRUCTURE fetched in batches.
+	 */
+	public static Message[] search(Folder folder, SearchTerm term) throws MessagingException {
+		return search(folder, term, null);
+	}
+	
+	/*
+	 * As above, but only searches the given messages.  If messages is null, the whole folder
+	 * is searched.
+	 */
+	public static Message[] search(Folder folder, SearchTerm term, Message[] messages) throws MessagingException {
+		List<SearchTerm> serverTerms = new ArrayList<SearchTerm>();
+		List<SearchTerm> attachmentTerms = new ArrayList<SearchTerm>();
+		
+		if (!splitTerm(term, serverTerms, attachmentTerms) || attachmentTerms.isEmpty())
+			return messages == null ? folder.search(term) : folder.search(term, messages);
+		
+		Message[] candidates;
+		
+		if (serverTerms.isEmpty())
+			candidates = messages == null ? folder.getMessages() : messages;
+		else {
+			SearchTerm serverTerm = serverTerms.size() == 1 ? serverTerms.get(0) :
+				new AndTerm(serverTerms.toArray(new SearchTerm[0]));
+			
+			candidates = messages == null ? folder.search(serverTerm) : folder.search(serverTerm, messages);
+		}
+		
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		
+		new MessagePrefetcher(profile).prefetch(folder, candidates);
+		
+		List<Message> matches = new ArrayList<Message>();
+		
+		for (Message message : candidates) {
+			boolean matched = true;
+			
+			for (SearchTerm attachmentTerm : attachmentTerms) {
+				if (!attachmentTerm.match(message)) {
+					matched = false;
+					break;
+				}
+			}
+			
+			if (matched)
+				matches.add(message);
+		}
+		
+		return matches.toArray(new Message[matches.size()]);
+	}
+	
+	/*
+	 * Splits a conjunction into its AttachmentTerms and its other terms.  Returns false if an
+	 * AttachmentTerm appears anywhere other than directly under an AND, in which case the term
+	 * cannot be split.
+	 */
+	private static boolean splitTerm(SearchTerm term, List<SearchTerm> serverTerms, List<SearchTerm> attachmentTerms) {
+		if (term instanceof AttachmentTerm) {
+			attachmentTerms.add(term);
+			return true;
+		}
+		
+		if (term instanceof AndTerm) {
+			for (SearchTerm subterm : ((AndTerm)term).getTerms())
+				if (!splitTerm(subterm, serverTerms, attachmentTerms))
+					return false;
+			
+			return true;
+		}
+		
+		if (containsAttachmentTerm(term))
+			return false;
+		
+		serverTerms.add(term);
+		
+		return true;
+	}
+	
+	static boolean containsAttachmentTerm(SearchTerm term) {
+		if (term instanceof AttachmentTerm)
+			return true;
+		
+		SearchTerm[] subterms = null;
+		
+		if (term instanceof AndTerm)
+			subterms = ((AndTerm)term).getTerms();
+		else if (term instanceof OrTerm)
+			subterms = ((OrTerm)term).getTerms();
+		else if (term instanceof NotTerm)
+			subterms = new SearchTerm[] { ((NotTerm)term).getTerm() };
+		
+		if (subterms != null)
+			for (SearchTerm subterm : subterms)
+				if (containsAttachmentTerm(subterm))
+					return true;
+		
+		return false;
+	}
 }
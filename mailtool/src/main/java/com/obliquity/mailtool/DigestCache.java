@@ -0,0 +1,337 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * An on-disk cache of message digests, so that a message is only downloaded and hashed
+ * once for as long as its folder keeps the same UIDVALIDITY.
+ * 
+ * The file begins with a header of HEADER_SIZE bytes holding a magic number, a version,
+ * the digest length and the name of the hash algorithm.  It is followed by fixed-size
+ * records, each holding
+ * 
+ *   folder key (8 bytes) | UIDVALIDITY (8) | UID (8) | valid marker (1) | digest | padding
+ * 
+ * where the folder key is taken from an MD5 hash of the folder name, and the record is
+ * padded to a multiple of eight bytes.  New records are only ever appended.  A torn record
+ * at the end, left by a crash part-way through writing it, is ignored.
+ * 
+ * The records already in the file are read in place through a memory mapping.  The only
+ * thing held on the heap for them is an open-addressed table of record numbers, about
+ * five bytes per record, so a cache of millions of digests costs little memory.  Records
+ * added since the file was opened are kept in a byte array until the cache is closed.
+ */
+public class DigestCache {
+	private static final int MAGIC = 0x4D544443;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int MAX_ALGORITHM_NAME_LENGTH = HEADER_SIZE - 13;
+	private static final byte VALID = 1;
+	private static final int MINIMUM_CAPACITY = 1024;
+	
+	private final String algorithm;
+	private final int digestLength;
+	private final int recordSize;
+	private final FileChannel channel;
+	
+	private MappedByteBuffer mapped = null;
+	private int mappedRecords = 0;
+	
+	private ByteBuffer appended;
+	private int appendedRecords = 0;
+	private int flushedRecords = 0;
+	
+	// Each slot holds a record number plus one, or zero if it is empty.
+	private int[] slots;
+	private int size = 0;
+	
+	public DigestCache(File file, String algorithm, int digestLength) throws IOException {
+		this.algorithm = algorithm;
+		this.digestLength = digestLength;
+		this.recordSize = (25 + digestLength + 7) & ~7;
+		
+		byte[] name = algorithm.getBytes(StandardCharsets.UTF_8);
+		
+		if (name.length > MAX_ALGORITHM_NAME_LENGTH)
+			throw new IllegalArgumentException("Algorithm name is too long: " + algorithm);
+		
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		
+		appended = ByteBuffer.allocate(256 * recordSize);
+		
+		if (channel.size() == 0) {
+			writeHeader(name);
+			slots = new int[MINIMUM_CAPACITY];
+		} else
+			load(file);
+	}
+	
+	private void writeHeader(byte[] name) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(digestLength);
+		header.put((byte)name.length);
+		header.put(name);
+		header.clear();
+		
+		channel.write(header, 0);
+		channel.force(false);
+	}
+	
+	private void load(File file) throws IOException {
+		long fileSize = channel.size();
+		
+		if (fileSize < HEADER_SIZE)
+			throw new IOException(file + " is not a digest cache");
+		
+		if (fileSize > Integer.MAX_VALUE)
+			throw new IOException(file + " is too large to map");
+		
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+		
+		if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+			throw new IOException(file + " is not a digest cache");
+		
+		int fileDigestLength = mapped.getInt();
+		byte[] name = new byte[mapped.get()];
+		mapped.get(name);
+		
+		String fileAlgorithm = new String(name, StandardCharsets.UTF_8);
+		
+		if (!fileAlgorithm.equals(algorithm) || fileDigestLength != digestLength)
+			throw new IOException(file + " holds " + fileAlgorithm + " digests, not " + algorithm);
+		
+		int records = (int)((fileSize - HEADER_SIZE) / recordSize);
+		
+		while (mappedRecords < records && mapped.get(HEADER_SIZE + mappedRecords * recordSize + 24) == VALID)
+			mappedRecords++;
+		
+		int capacity = MINIMUM_CAPACITY;
+		
+		while (capacity * 3 < mappedRecords * 4)
+			capacity <<= 1;
+		
+		slots = new int[capacity];
+		
+		for (int i = 0; i < mappedRecords; i++) {
+			int offset = getRecordOffset(i);
+			
+			index(i, mapped.getLong(offset), mapped.getLong(offset + 8), mapped.getLong(offset + 16));
+		}
+		
+		// Drop a torn record, so that the next record added follows the last complete one.
+		if (fileSize > HEADER_SIZE + (long)mappedRecords * recordSize)
+			channel.truncate(HEADER_SIZE + (long)mappedRecords * recordSize);
+	}
+	
+	/*
+	 * Records which were in the file when it was opened are read from the mapping, and
+	 * the rest from the array of records added since.
+	 */
+	private ByteBuffer getRecordBuffer(int record) {
+		return record < mappedRecords ? mapped : appended;
+	}
+	
+	private int getRecordOffset(int record) {
+		return record < mappedRecords ? HEADER_SIZE + record * recordSize : (record - mappedRecords) * recordSize;
+	}
+	
+	private boolean matches(int record, long folderKey, long uidValidity, long uid) {
+		ByteBuffer buffer = getRecordBuffer(record);
+		int offset = getRecordOffset(record);
+		
+		return buffer.getLong(offset + 16) == uid && buffer.getLong(offset + 8) == uidValidity &&
+				buffer.getLong(offset) == folderKey;
+	}
+	
+	/*
+	 * Returns the slot holding the record with the given key, or the empty slot where it
+	 * would go.
+	 */
+	private int findSlot(long folderKey, long uidValidity, long uid) {
+		int mask = slots.length - 1;
+		
+		int slot = hash(folderKey, uidValidity, uid) & mask;
+		
+		while (slots[slot] != 0 && !matches(slots[slot] - 1, folderKey, uidValidity, uid))
+			slot = (slot + 1) & mask;
+		
+		return slot;
+	}
+	
+	/*
+	 * Adds the record to the table, replacing any earlier record with the same key.
+	 */
+	private void index(int record, long folderKey, long uidValidity, long uid) {
+		int slot = findSlot(folderKey, uidValidity, uid);
+		
+		if (slots[slot] == 0) {
+			if ((size + 1) * 4 > slots.length * 3) {
+				grow();
+				slot = findSlot(folderKey, uidValidity, uid);
+			}
+			
+			size++;
+		}
+		
+		slots[slot] = record + 1;
+	}
+	
+	private void grow() {
+		int[] oldSlots = slots;
+		
+		slots = new int[oldSlots.length << 1];
+		
+		int mask = slots.length - 1;
+		
+		for (int entry : oldSlots) {
+			if (entry == 0)
+				continue;
+			
+			ByteBuffer buffer = getRecordBuffer(entry - 1);
+			int offset = getRecordOffset(entry - 1);
+			
+			int slot = hash(buffer.getLong(offset), buffer.getLong(offset + 8), buffer.getLong(offset + 16)) & mask;
+			
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			
+			slots[slot] = entry;
+		}
+	}
+	
+	private static int hash(long folderKey, long uidValidity, long uid) {
+		long h = folderKey ^ (uidValidity * 0x9E3779B97F4A7C15L) ^ (uid * 0xC2B2AE3D27D4EB4FL);
+		
+		// Finalisation step from MurmurHash3, to spread the bits.
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		
+		return (int)h;
+	}
+	
+	/*
+	 * Returns the cached digest of the message with the given UID, or null if it has not
+	 * been hashed yet.
+	 */
+	public synchronized byte[] get(String folderName, long uidValidity, long uid) {
+		int entry = slots[findSlot(getFolderKey(folderName), uidValidity, uid)];
+		
+		if (entry == 0)
+			return null;
+		
+		byte[] digest = new byte[digestLength];
+		
+		getRecordBuffer(entry - 1).get(getRecordOffset(entry - 1) + 25, digest);
+		
+		return digest;
+	}
+	
+	public synchronized void put(String folderName, long uidValidity, long uid, byte[] digest) throws IOException {
+		if (digest.length != digestLength)
+			throw new IllegalArgumentException("Expected a digest of " + digestLength + " bytes, got " + digest.length);
+		
+		long folderKey = getFolderKey(folderName);
+		
+		if (slots[findSlot(folderKey, uidValidity, uid)] != 0)
+			return;
+		
+		if (appended.remaining() < recordSize) {
+			ByteBuffer larger = ByteBuffer.allocate(appended.capacity() * 2);
+			appended.flip();
+			larger.put(appended);
+			appended = larger;
+		}
+		
+		int start = appended.position();
+		
+		appended.putLong(folderKey);
+		appended.putLong(uidValidity);
+		appended.putLong(uid);
+		appended.put(VALID);
+		appended.put(digest);
+		appended.position(start + recordSize);
+		
+		index(mappedRecords + appendedRecords, folderKey, uidValidity, uid);
+		
+		appendedRecords++;
+	}
+	
+	/*
+	 * Writes the records added since the last flush to the end of the file.
+	 */
+	public synchronized void flush() throws IOException {
+		ByteBuffer pending = appended.duplicate();
+		
+		pending.position(flushedRecords * recordSize);
+		pending.limit(appendedRecords * recordSize);
+		
+		long position = HEADER_SIZE + (long)(mappedRecords + flushedRecords) * recordSize;
+		
+		while (pending.hasRemaining())
+			position += channel.write(pending, position);
+		
+		flushedRecords = appendedRecords;
+		
+		channel.force(false);
+	}
+	
+	public synchronized void close() throws IOException {
+		flush();
+		channel.close();
+	}
+	
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/*
+	 * The folder name is hashed so that every record has the same size, however long the
+	 * name.  Eight bytes of MD5 make a collision between two folders vanishingly unlikely.
+	 */
+	private static long getFolderKey(String folderName) {
+		try {
+			byte[] hash = MessageDigest.getInstance("MD5").digest(folderName.getBytes(StandardCharsets.UTF_8));
+			
+			return ByteBuffer.wrap(hash).getLong();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+	}
+}
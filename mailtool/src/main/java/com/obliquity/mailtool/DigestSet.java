@@ -0,0 +1,175 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+/*
+ * A compact set of fixed-length binary digests.
+ * 
+ * The digests are packed end to end in a single byte array, and looked up by open
+ * addressing with linear probing, so each entry costs little more than the digest itself.
+ * A HashSet of hex strings needs several times as much memory per entry.
+ */
+public class DigestSet {
+	private static final int MINIMUM_CAPACITY = 16;
+	
+	private final int digestLength;
+	
+	private byte[] digests;
+	private boolean[] occupied;
+	private int capacity;
+	private int size = 0;
+	
+	public DigestSet(int digestLength) {
+		this(digestLength, 1024);
+	}
+	
+	public DigestSet(int digestLength, int expectedSize) {
+		if (digestLength <= 0)
+			throw new IllegalArgumentException("Digest length must be positive");
+		
+		this.digestLength = digestLength;
+		
+		int capacity = MINIMUM_CAPACITY;
+		
+		while (capacity * 3 < expectedSize * 4)
+			capacity <<= 1;
+		
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.digests = new byte[capacity * digestLength];
+		this.occupied = new boolean[capacity];
+	}
+	
+	public int getDigestLength() {
+		return digestLength;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/*
+	 * Adds the digest, returning true if it was not already present.
+	 */
+	public boolean add(byte[] digest) {
+		checkLength(digest);
+		
+		int slot = findSlot(digest);
+		
+		if (occupied[slot])
+			return false;
+		
+		if ((size + 1) * 4 > capacity * 3) {
+			grow();
+			slot = findSlot(digest);
+		}
+		
+		store(slot, digest, 0);
+		size++;
+		
+		return true;
+	}
+	
+	public boolean contains(byte[] digest) {
+		checkLength(digest);
+		
+		return occupied[findSlot(digest)];
+	}
+	
+	private void checkLength(byte[] digest) {
+		if (digest.length != digestLength)
+			throw new IllegalArgumentException("Expected a digest of " + digestLength + " bytes, got " + digest.length);
+	}
+	
+	/*
+	 * Returns the slot holding the digest, or the empty slot where it would go.
+	 */
+	private int findSlot(byte[] digest) {
+		int mask = capacity - 1;
+		
+		int slot = hash(digest, 0) & mask;
+		
+		while (occupied[slot] && !matches(slot, digest))
+			slot = (slot + 1) & mask;
+		
+		return slot;
+	}
+	
+	private boolean matches(int slot, byte[] digest) {
+		int offset = slot * digestLength;
+		
+		for (int i = 0; i < digestLength; i++)
+			if (digests[offset + i] != digest[i])
+				return false;
+		
+		return true;
+	}
+	
+	private void store(int slot, byte[] source, int sourceOffset) {
+		System.arraycopy(source, sourceOffset, digests, slot * digestLength, digestLength);
+		occupied[slot] = true;
+	}
+	
+	private void grow() {
+		byte[] oldDigests = digests;
+		boolean[] oldOccupied = occupied;
+		int oldCapacity = capacity;
+		
+		allocate(capacity << 1);
+		
+		int mask = capacity - 1;
+		
+		for (int i = 0; i < oldCapacity; i++) {
+			if (!oldOccupied[i])
+				continue;
+			
+			int slot = hash(oldDigests, i * digestLength) & mask;
+			
+			while (occupied[slot])
+				slot = (slot + 1) & mask;
+			
+			store(slot, oldDigests, i * digestLength);
+		}
+	}
+	
+	private int hash(byte[] bytes, int offset) {
+		int h = 0;
+		
+		for (int i = 0; i < digestLength; i++)
+			h = 31 * h + bytes[offset + i];
+		
+		// Finalisation step from MurmurHash3, to spread the bits.
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		
+		return h;
+	}
+}
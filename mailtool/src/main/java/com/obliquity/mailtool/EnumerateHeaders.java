@@ -32,6 +32,7 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Header;
@@ -39,6 +40,8 @@ import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.search.FlagTerm;
 
+import com.sun.mail.imap.IMAPFolder;
+
 public class EnumerateHeaders extends AbstractMailClient {
 	private final FlagTerm notDeleted = new FlagTerm(new Flags(Flags.Flag.DELETED), false);
 
@@ -102,12 +105,21 @@ public class EnumerateHeaders extends AbstractMailClient {
 		if ((type & Folder.HOLDS_MESSAGES) != 0) {
 			folder.open(Folder.READ_ONLY);
 			
-			Message[] messages = folder.search(notDeleted);
-
-			for (Message message : messages)
-				processMessage(message, headerMap);
+			PagedMessageSearch search = new PagedMessageSearch(folder, notDeleted);
+			
+			FetchProfile profile = new FetchProfile();
+			profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+			
+			search.setPrefetcher(new MessagePrefetcher(profile));
 			
-			messageCount = messages.length;
+			Message[] page;
+			
+			while ((page = search.nextPage()) != null) {
+				for (Message message : page)
+					processMessage(message, headerMap);
+			
+				messageCount += page.length;
+			}
 			
 			folder.close(false);
 		}
@@ -24,7 +24,10 @@
 
 package com.obliquity.mailtool;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -38,6 +41,7 @@ public class FolderCopier extends AbstractMailClient {
 	public static void main(String[] args) throws URISyntaxException, MessagingException {
 		String fromURI = null;
 		String toURI = null;
+		boolean skipDuplicates = false;
 
 		for (int i = 0; i < args.length; i++) {
 			switch (args[i]) {
@@ -48,6 +52,10 @@ public class FolderCopier extends AbstractMailClient {
 			case "-to":
 				toURI = args[++i];
 				break;
+				
+			case "-skipduplicates":
+				skipDuplicates = true;
+				break;
 
 			default:
 				System.err.println("Unrecognised option: " + args[i]);
@@ -64,31 +72,54 @@ public class FolderCopier extends AbstractMailClient {
 		FolderCopier copier = new FolderCopier(fromURI);
 
 		try {
-			copier.copy(toURI);
-		} catch (URISyntaxException | MessagingException e) {
+			copier.copy(toURI, skipDuplicates);
+		} catch (URISyntaxException | MessagingException | IOException e) {
 			e.printStackTrace();
 		}
 	}
 
-	public void copy(String toURI) throws URISyntaxException, MessagingException {
+	public void copy(String toURI, boolean skipDuplicates) throws URISyntaxException, MessagingException, IOException {
 		Folder fromFolder = getMainFolder();
 
 		Folder toFolder = connectToFolder(toURI);
 
-		System.out.println("Source folder has " + fromFolder.getMessageCount() + " messages");
+		try {
+			System.out.println("Source folder has " + fromFolder.getMessageCount() + " messages");
 
-		System.out.println("Destination folder has " + toFolder.getMessageCount() + " messages");
+			System.out.println("Destination folder has " + toFolder.getMessageCount() + " messages");
 
-		fromFolder.open(Folder.READ_ONLY);
-		
-		toFolder.open(Folder.READ_WRITE);
+			fromFolder.open(Folder.READ_ONLY);
+			
+			toFolder.open(Folder.READ_WRITE);
 
-		Message[] messages = fromFolder.getMessages();
+			Message[] messages = fromFolder.getMessages();
+			
+			if (skipDuplicates)
+				messages = removeDuplicates(fromFolder, messages, toFolder);
 
-		fromFolder.copyMessages(messages, toFolder);
+			fromFolder.copyMessages(messages, toFolder);
 
-		System.out.println("Source folder now has " + fromFolder.getMessageCount() + " messages");
+			System.out.println("Source folder now has " + fromFolder.getMessageCount() + " messages");
 
-		System.out.println("Destination folder now has " + toFolder.getMessageCount() + " messages");
+			System.out.println("Destination folder now has " + toFolder.getMessageCount() + " messages");
+		} finally {
+			releaseFolder(toFolder);
+		}
+	}
+	
+	private Message[] removeDuplicates(Folder fromFolder, Message[] messages, Folder toFolder) throws MessagingException, IOException {
+		MessageDedupIndex index = MessageDedupIndex.build(toFolder);
+		
+		new MessagePrefetcher().prefetch(fromFolder, messages);
+		
+		List<Message> newMessages = new ArrayList<Message>();
+		
+		for (Message message : messages)
+			if (!index.contains(message))
+				newMessages.add(message);
+		
+		System.out.println("Skipping " + (messages.length - newMessages.size()) + " messages which are already in the destination folder");
+		
+		return newMessages.toArray(new Message[newMessages.size()]);
 	}
 }
@@ -24,33 +24,150 @@
 
 package com.obliquity.mailtool;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.mail.*;
 import javax.mail.event.*;
 
+import com.obliquity.mailtool.messagehandler.SimpleMessageHandler;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IdleManager;
+import com.sun.mail.imap.IMAPStore;
+
 public class FolderMonitor extends AbstractMailClient {
-	private static final long SLEEP_TIME = 5000;
+	/*
+	 * Polling starts at the minimum interval, doubles each time nothing has happened, up to
+	 * the maximum, and drops back to the minimum as soon as something does happen.
+	 */
+	private static final long MIN_POLL_INTERVAL = 1000L * Integer.getInteger("mailtool.poll.mininterval", 5);
+	private static final long MAX_POLL_INTERVAL = 1000L * Integer.getInteger("mailtool.poll.maxinterval", 300);
+	
+	/*
+	 * Servers may drop a connection which has been idle for 30 minutes, so IDLE is
+	 * interrupted and re-issued more often than that.
+	 */
+	private static final long IDLE_KEEPALIVE_INTERVAL = 1000L * Integer.getInteger("mailtool.idle.keepalive", 25 * 60);
+	
+	private boolean forcePolling = false;
+	
+	private final AtomicBoolean activity = new AtomicBoolean(false);
+	
+	private IdleManager idleManager = null;
+	
+	private ModSeqState syncState = null;
 
 	public FolderMonitor(String folderURI) throws MessagingException, URISyntaxException {
 		super(folderURI);
 	}
 	
 	public static void main(String[] args) {
-		String folderURI = args[0];
+		List<String> folderURIs = new ArrayList<String>();
+		boolean forcePolling = false;
+		boolean recursive = false;
+		String handlerName = null;
+		int workers = 1;
+		String syncStateFile = null;
+		
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i].toLowerCase()) {
+			case "-uri":
+				folderURIs.add(args[++i]);
+				break;
+				
+			case "-poll":
+				forcePolling = true;
+				break;
+				
+			case "-recursive":
+				recursive = true;
+				break;
+				
+			case "-handler":
+				handlerName = args[++i];
+				break;
+				
+			case "-workers":
+				workers = Integer.parseInt(args[++i]);
+				break;
+				
+			case "-syncstate":
+				syncStateFile = args[++i];
+				break;
+				
+			default:
+				if (folderURIs.isEmpty() && !args[i].startsWith("-"))
+					folderURIs.add(args[i]);
+				else {
+					System.err.println("Unknown option: " + args[i]);
+					System.exit(1);
+				}
+			}
+		}
+		
+		if (folderURIs.isEmpty()) {
+			System.err.println("You must specify a folder URI");
+			System.exit(1);
+		}
+		
+		boolean multipleFolders = recursive || handlerName != null || folderURIs.size() > 1;
+		
+		List<MessageHandler> handlers = new ArrayList<MessageHandler>();
+		
+		try {
+			MessageHandler shared = null;
+			
+			for (int i = 0; i < Math.max(workers, 1); i++) {
+				MessageHandler handler = shared != null ? shared :
+					handlerName != null ? createMessageHandler(handlerName) : new SimpleMessageHandler();
+				
+				// A thread-safe handler is shared by all the workers, and so are its resources.
+				if (handler.isThreadSafe())
+					shared = handler;
+				
+				handlers.add(handler);
+			}
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		if (multipleFolders) {
+			// IdleManager can only watch folders whose connections use SocketChannels.
+			StoreConnectionPool pool = StoreConnectionPool.getSharedPool();
+			pool.setSessionProperty("mail.imap.usesocketchannels", "true");
+			pool.setSessionProperty("mail.imaps.usesocketchannels", "true");
+		}
 		
 		FolderMonitor monitor = null;
 		
 		try {
-			monitor = new FolderMonitor(folderURI);
-		} catch (MessagingException | URISyntaxException e) {
+			monitor = new FolderMonitor(folderURIs.get(0));
+			
+			if (syncStateFile != null)
+				monitor.syncState = new ModSeqState(new File(syncStateFile));
+		} catch (MessagingException | URISyntaxException | IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 		
-		monitor.run();
+		monitor.forcePolling = forcePolling;
+		
+		if (multipleFolders)
+			monitor.run(folderURIs, recursive, handlers);
+		else
+			monitor.run();
 	}
 
 	private void run() {
@@ -65,13 +182,261 @@ public class FolderMonitor extends AbstractMailClient {
 
 	}
 	
+	/*
+	 * Watches many folders at once, passing new and changed messages to the handlers.
+	 * 
+	 * Each open folder still has its own IMAP connection, since a connection can only select
+	 * one folder at a time, but no thread is tied to any of them.  The IdleManager waits
+	 * in IDLE on all of the connections from a single selector thread.  JavaMail delivers
+	 * each folder's events on that folder's own event thread, so the listeners must not
+	 * block; they only queue the messages, and the handlers run on the dispatcher's workers.
+	 */
+	private void run(List<String> folderURIs, boolean recursive, List<MessageHandler> handlers) {
+		MessageDispatcher dispatcher = new MessageDispatcher(handlers);
+		
+		dispatcher.setBatchListener((folder, handled, failed) -> {
+			if (syncState != null)
+				syncState.handled(getFolderKey(folder), handled, failed);
+			
+			watchAgain(folder);
+		});
+		
+		dispatcher.start();
+		
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				dispatcher.shutdown();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+			System.err.println("Handled " + dispatcher.getHandledCount() + " of " + dispatcher.getDispatchedCount() +
+					" messages, " + dispatcher.getFailedCount() + " failed");
+		}));
+		
+		List<Folder> roots = new ArrayList<Folder>();
+		
+		try {
+			List<Folder> folders = new ArrayList<Folder>();
+			
+			for (int i = 0; i < folderURIs.size(); i++) {
+				Folder root = i == 0 ? getMainFolder() : connectToFolder(folderURIs.get(i));
+				
+				if (i > 0)
+					roots.add(root);
+				
+				listFolders(root, recursive, folders);
+			}
+			
+			for (Folder folder : folders) {
+				ModSeqState.Changes changes = openFolder(folder);
+				
+				addDispatchListeners(folder, dispatcher);
+				
+				if (changes != null) {
+					System.out.println(folder.getFullName() + " : " + describeChanges(changes));
+					dispatch(dispatcher, folder, changes.getMessages());
+				}
+				
+				if (syncState != null)
+					syncState.checkpoint(getFolderKey(folder));
+			}
+			
+			System.out.println("Watching " + folders.size() + " folders");
+			
+			if (!forcePolling && startIdleManager(folders))
+				keepalive(folders);
+			else
+				poll(folders);
+		} catch (MessagingException | URISyntaxException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} finally {
+			for (Folder root : roots)
+				releaseFolder(root);
+		}
+	}
+	
+	private void listFolders(Folder root, boolean recursive, List<Folder> folders) throws MessagingException {
+		if ((root.getType() & Folder.HOLDS_MESSAGES) != 0)
+			folders.add(root);
+		
+		if (recursive && (root.getType() & Folder.HOLDS_FOLDERS) != 0) {
+			Folder[] descendants = root.list("*");
+			
+			Arrays.sort(descendants, new FolderPathComparator());
+			
+			for (Folder folder : descendants)
+				if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+					folders.add(folder);
+		}
+	}
+	
+	/*
+	 * Returns true if every folder is now being watched by the IdleManager, or false if the
+	 * folders must be polled instead.
+	 */
+	private boolean startIdleManager(List<Folder> folders) throws MessagingException, URISyntaxException {
+		for (Folder folder : folders) {
+			if (!supportsIdle(folder)) {
+				System.out.println(folder.getStore().getURLName().getHost() + " does not support IDLE");
+				return false;
+			}
+		}
+		
+		// The executor runs the selector loop, and the occasional short task to end an IDLE
+		// on a connection with a read timeout, so it must be able to grow past one thread.
+		ExecutorService executor = Executors.newCachedThreadPool();
+		
+		try {
+			idleManager = new IdleManager(getConnectionPool().getSession(getMainFolderURI()), executor);
+			
+			for (Folder folder : folders)
+				idleManager.watch(folder);
+			
+			System.out.println("Using IMAP IDLE");
+			
+			return true;
+		} catch (IOException | MessagingException e) {
+			System.err.println("Cannot use IDLE : " + e.getMessage());
+			
+			if (idleManager != null)
+				idleManager.stop();
+			
+			idleManager = null;
+			
+			executor.shutdown();
+			
+			return false;
+		}
+	}
+	
+	/*
+	 * Interrupts each IDLE now and then, as in the single folder mode.  A folder which is
+	 * used by another thread stops being watched, so it is watched again afterwards.
+	 */
+	private void keepalive(List<Folder> folders) {
+		while (idleManager.isRunning()) {
+			try {
+				Thread.sleep(IDLE_KEEPALIVE_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			
+			for (Folder folder : folders) {
+				try {
+					folder.getMessageCount();
+					idleManager.watch(folder);
+				} catch (MessagingException e) {
+					System.err.println("Keepalive failed for " + folder.getFullName() + " : " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	private void addDispatchListeners(Folder folder, MessageDispatcher dispatcher) {
+		folder.addMessageCountListener(new MessageCountAdapter() {
+			public void messagesAdded(MessageCountEvent event) {
+				activity.set(true);
+				
+				dispatch(dispatcher, folder, event.getMessages());
+				
+				watchAgain(folder);
+			}
+			
+			public void messagesRemoved(MessageCountEvent event) {
+				activity.set(true);
+				
+				showDate();
+				System.out.println("Removed " + event.getMessages().length + " messages from " + folder.getFullName());
+				
+				watchAgain(folder);
+			}
+		});
+		
+		folder.addMessageChangedListener(new MessageChangedListener() {
+			public void messageChanged(MessageChangedEvent event) {
+				activity.set(true);
+				
+				dispatch(dispatcher, folder, new Message[] { event.getMessage() });
+				
+				watchAgain(folder);
+			}
+		});
+	}
+	
+	private void dispatch(MessageDispatcher dispatcher, Folder folder, Message[] messages) {
+		if (syncState != null)
+			syncState.dispatched(getFolderKey(folder), messages.length);
+		
+		try {
+			dispatcher.dispatch(folder, messages);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IllegalStateException e) {
+			// Shutting down, so messages which arrive now are not handled.
+		}
+	}
+	
+	/*
+	 * The IdleManager stops watching a folder when it reports an event, so the listener
+	 * must ask it to watch the folder again.
+	 */
+	private void watchAgain(Folder folder) {
+		if (idleManager == null)
+			return;
+		
+		try {
+			idleManager.watch(folder);
+		} catch (MessagingException e) {
+			System.err.println("Cannot watch " + folder.getFullName() + " : " + e.getMessage());
+		}
+	}
+	
+	/*
+	 * Opens the folder, returning what has changed since the previous run if there is a
+	 * sync state and the server supports CONDSTORE, or null otherwise.
+	 */
+	private ModSeqState.Changes openFolder(Folder folder) throws MessagingException {
+		if (syncState != null)
+			return syncState.open(getFolderKey(folder), folder, Folder.READ_ONLY);
+		
+		folder.open(Folder.READ_ONLY);
+		
+		return null;
+	}
+	
+	private String describeChanges(ModSeqState.Changes changes) {
+		return changes.getMessages().length + " messages added or changed, " + changes.getVanishedCount() +
+				" expunged since the last run";
+	}
+	
+	/*
+	 * Records how far the folder has been seen in the single folder mode, where each
+	 * message is displayed on the event thread as soon as it arrives, so that a restarted
+	 * monitor can catch up on what it missed without rescanning.
+	 */
+	private void saveSyncState(Folder folder, Message[] messages) {
+		if (syncState == null)
+			return;
+		
+		String folderKey = getFolderKey(folder);
+		
+		syncState.dispatched(folderKey, messages.length);
+		syncState.handled(folderKey, messages, new Message[0]);
+	}
+	
 	private void monitorFolder(Folder folder) throws MessagingException {
+		ModSeqState.Changes changes = null;
+		
 		if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
-			folder.open(Folder.READ_ONLY);
+			changes = openFolder(folder);
 
 			folder.addMessageCountListener(new MessageCountAdapter() {
 				public void messagesAdded(MessageCountEvent event) {
 					Message[] messages = event.getMessages();
+					
+					activity.set(true);
 
 					showDate();
 					
@@ -87,10 +452,14 @@ public class FolderMonitor extends AbstractMailClient {
 							e.printStackTrace();
 						}
 					}
+					
+					saveSyncState(folder, messages);
 				}
 
 				public void messagesRemoved(MessageCountEvent event) {
 					Message[] messages = event.getMessages();
+					
+					activity.set(true);
 
 					showDate();
 					
@@ -116,6 +485,8 @@ public class FolderMonitor extends AbstractMailClient {
 			folder.addMessageChangedListener(new MessageChangedListener() {
 				public void messageChanged(MessageChangedEvent event) {
 					Message message = event.getMessage();
+					
+					activity.set(true);
 
 					showDate();
 					
@@ -128,6 +499,8 @@ public class FolderMonitor extends AbstractMailClient {
 					} catch (MessagingException | IOException e) {
 						e.printStackTrace();
 					}
+					
+					saveSyncState(folder, new Message[] { message });
 				}
 			});
 		}
@@ -150,25 +523,103 @@ public class FolderMonitor extends AbstractMailClient {
 		});
 		
 		System.out.println("Watching folder " + folder.getFullName());
-
-		while (true) {
-			int type = folder.getType();
+		
+		if (changes != null) {
+			showDate();
+			System.out.println(describeChanges(changes));
 			
-			boolean containsMessages = (type & Folder.HOLDS_MESSAGES) != 0;
+			Message[] messages = changes.getMessages();
 			
-			boolean containsFolders = (type & Folder.HOLDS_FOLDERS) != 0;
+			for (int i = 0; i < messages.length; i++) {
+				System.out.println("Message " + i + ":");
+				
+				try {
+					displayMessage(messages[i], System.out);
+					System.out.println();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 			
+			saveSyncState(folder, messages);
+		} else if (syncState != null)
+			syncState.checkpoint(getFolderKey(folder));
+		
+		if (!forcePolling && supportsIdle(folder))
+			idle((IMAPFolder)folder);
+		else
+			poll(Collections.singletonList(folder));
+	}
+	
+	private boolean supportsIdle(Folder folder) throws MessagingException {
+		return (folder.getType() & Folder.HOLDS_MESSAGES) != 0 && folder instanceof IMAPFolder &&
+				((IMAPStore)folder.getStore()).hasCapability("IDLE");
+	}
+	
+	/*
+	 * Waits in IMAP IDLE, so that the server pushes changes to us as soon as they happen.
+	 * idle() returns after each notification has been dispatched to the listeners, and
+	 * is then re-issued.  A timer periodically asks for the message count, which ends the
+	 * current IDLE and keeps the connection from being dropped as inactive.
+	 */
+	private void idle(IMAPFolder folder) throws MessagingException {
+		System.out.println("Using IMAP IDLE");
+		
+		boolean containsFolders = (folder.getType() & Folder.HOLDS_FOLDERS) != 0;
+		
+		Timer keepalive = new Timer("idle-keepalive", true);
+		
+		keepalive.schedule(new TimerTask() {
+			public void run() {
+				try {
+					folder.getMessageCount();
+					
+					if (containsFolders)
+						folder.list();
+				} catch (MessagingException e) {
+					System.err.println("Keepalive failed: " + e.getMessage());
+				}
+			}
+		}, IDLE_KEEPALIVE_INTERVAL, IDLE_KEEPALIVE_INTERVAL);
+		
+		try {
+			while (folder.isOpen())
+				folder.idle();
+		} finally {
+			keepalive.cancel();
+		}
+	}
+	
+	/*
+	 * For servers without IDLE, asks for the message count at intervals which lengthen
+	 * while the folders are quiet.
+	 */
+	private void poll(List<Folder> folders) throws MessagingException {
+		System.out.println("Polling every " + MIN_POLL_INTERVAL / 1000 + " to " + MAX_POLL_INTERVAL / 1000 + " seconds");
+		
+		long interval = MIN_POLL_INTERVAL;
+		
+		while (true) {
 		    try {
-				Thread.sleep(SLEEP_TIME);
+				Thread.sleep(interval);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-
-		    if (containsMessages)
-		    	folder.getMessageCount();
 		    
-		    if (containsFolders)
-		    	folder.list();
+		    for (Folder folder : folders) {
+				int type = folder.getType();
+				
+			    if ((type & Folder.HOLDS_MESSAGES) != 0)
+			    	folder.getMessageCount();
+			    
+			    if ((type & Folder.HOLDS_FOLDERS) != 0)
+			    	folder.list();
+		    }
+		    
+		    if (activity.getAndSet(false))
+		    	interval = MIN_POLL_INTERVAL;
+		    else
+		    	interval = Math.min(2 * interval, MAX_POLL_INTERVAL);
 		}
 	}
 	
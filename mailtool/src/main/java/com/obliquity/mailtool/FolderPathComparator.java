@@ -0,0 +1,56 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+/*
+ * Orders folders so that each folder is followed immediately by its own subfolders,
+ * which is the order in which a recursive search visits them.
+ */
+class FolderPathComparator implements Comparator<Folder> {
+	public int compare(Folder f1, Folder f2) {
+		try {
+			String[] path1 = f1.getFullName().split(Pattern.quote(String.valueOf(f1.getSeparator())));
+			String[] path2 = f2.getFullName().split(Pattern.quote(String.valueOf(f2.getSeparator())));
+			
+			for (int i = 0; i < path1.length && i < path2.length; i++) {
+				int c = path1[i].compareTo(path2[i]);
+				
+				if (c != 0)
+					return c;
+			}
+			
+			return path1.length - path2.length;
+		} catch (MessagingException e) {
+			return f1.getFullName().compareTo(f2.getFullName());
+		}
+	}
+}
+
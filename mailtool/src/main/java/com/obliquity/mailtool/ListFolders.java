@@ -27,6 +27,7 @@ package com.obliquity.mailtool;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -138,6 +139,11 @@ public class ListFolders extends AbstractMailClient {
 				
 				Message[] messages = folder.search(notDeleted);
 				
+				FetchProfile profile = new FetchProfile();
+				profile.add(FetchProfile.Item.SIZE);
+				
+				new MessagePrefetcher(profile).prefetch(folder, messages);
+				
 				long totalSize = 0;
 				
 				for (Message message : messages) {
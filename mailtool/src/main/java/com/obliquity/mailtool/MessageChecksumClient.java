@@ -24,35 +24,57 @@
 
 package com.obliquity.mailtool;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
 import javax.mail.search.FlagTerm;
 
 public class MessageChecksumClient extends AbstractMailClient {
+	/*
+	 * Duplicates are only deleted by a hash of at least 64 bits, for which a chance match
+	 * between different messages is negligible even in millions of messages.
+	 */
+	private static final int MINIMUM_DELETION_DIGEST_LENGTH = 8;
+	
+	private String[] normalizedHeaders = null;
+	
 	public MessageChecksumClient(String folderURI) throws URISyntaxException, MessagingException {
 		super(folderURI);
 	}
+	
 	public static void main(String[] args) {
-		String folderURI = null;
+		List<String> folderURIs = new ArrayList<String>();
+		boolean recursive = false;
 		boolean deleteDuplicates = false;
 		String digestName = "MD5";
+		int fetchers = 0;
+		int hashers = 0;
+		String cacheFile = null;
+		boolean normalized = false;
+		String[] headerNames = MessageDigests.DEFAULT_NORMALIZED_HEADERS;
 		
 		for (int i = 0; i < args.length; i++) {
 			switch (args[i].toLowerCase()) {
 			case "-uri":
-				folderURI = args[++i];
+				folderURIs.add(args[++i]);
+				break;
+				
+			case "-recursive":
+				recursive = true;
 				break;
 				
 			case "-digest":
@@ -65,114 +87,330 @@ public class MessageChecksumClient extends AbstractMailClient {
 				deleteDuplicates = true;
 				break;
 				
+			case "-fetchers":
+				fetchers = Integer.parseInt(args[++i]);
+				break;
+				
+			case "-hashers":
+				hashers = Integer.parseInt(args[++i]);
+				break;
+				
+			case "-cache":
+				cacheFile = args[++i];
+				break;
+				
+			case "-normalized":
+			case "-normalised":
+				normalized = true;
+				break;
+				
+			case "-headers":
+				headerNames = args[++i].split(",");
+				break;
+				
 			default:	
 				System.err.println("Unknown option: " + args[i]);
 				System.exit(1);
 			}		
 		}
 		
+		if (folderURIs.isEmpty()) {
+			System.err.println("You must specify at least one -uri");
+			System.exit(1);
+		}
+		
 		MessageChecksumClient checksummer = null;
 		
 		try {
-			MessageDigest digester = MessageDigest.getInstance(digestName);
+			MessageHasher hasher = MessageDigests.createHasher(digestName);
+			
+			if (deleteDuplicates && hasher.getDigestLength() < MINIMUM_DELETION_DIGEST_LENGTH) {
+				System.err.println("The " + hasher.getAlgorithm() + " checksum is too short to identify duplicates safely." +
+						"  Use a digest of at least " + (8 * MINIMUM_DELETION_DIGEST_LENGTH) + " bits, such as MD5 or SHA-256," +
+						" with -deleteduplicates");
+				System.exit(1);
+			}
 			
-			checksummer = new MessageChecksumClient(folderURI);
+			ParallelMessageHasher parallelHasher = fetchers > 0 || hashers > 0 ?
+					new ParallelMessageHasher(digestName, hashers) : null;
 			
-			checksummer.run(digester, deleteDuplicates);
+			if (parallelHasher != null && normalized)
+				parallelHasher.setNormalizedHeaders(headerNames);
+			
+			// Normalized digests are kept apart from raw ones in the cache, and from those
+			// made with a different list of headers.
+			String digestLabel = hasher.getAlgorithm() + (normalized ? "/normalized/" + getHeaderListKey(headerNames) : "");
+			
+			DigestCache cache = cacheFile != null ?
+					new DigestCache(new File(cacheFile), digestLabel, hasher.getDigestLength()) : null;
+			
+			checksummer = new MessageChecksumClient(folderURIs.get(0));
+			
+			if (normalized)
+				checksummer.normalizedHeaders = headerNames;
+			
+			checksummer.run(folderURIs, recursive, hasher, parallelHasher, fetchers, cache, deleteDuplicates);
+			
+			if (cache != null)
+				cache.close();
 		} catch (NoSuchAlgorithmException | URISyntaxException | MessagingException | IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
 	}
+	
+	/*
+	 * Identifies a list of normalized headers in a few bytes, since the cache has little
+	 * room for its label.  Header names are not case-sensitive, but their order matters.
+	 */
+	private static String getHeaderListKey(String[] headerNames) throws NoSuchAlgorithmException {
+		String list = String.join(",", headerNames).toLowerCase();
+		
+		byte[] hash = MessageDigest.getInstance("MD5").digest(list.getBytes(StandardCharsets.UTF_8));
+		
+		return MessageDigests.toHexString(Arrays.copyOf(hash, 8));
+	}
+	
+	private Message[] openAndSortMessages(Folder folder, boolean deleteDuplicates, boolean withUIDs) throws MessagingException {
+		FlagTerm notDeleted = new FlagTerm(new Flags(Flags.Flag.DELETED), false);
+		
+		folder.open(deleteDuplicates? Folder.READ_WRITE : Folder.READ_ONLY);
+		
+		Message[] messages = folder.search(notDeleted);
+		
+		MessagePrefetcher prefetcher = new MessagePrefetcher();
+		
+		// The listing of each message shows its MIME parts, which for IMAP come from the
+		// body structure, so that is fetched here rather than once per message.
+		prefetcher.addItem(FetchProfile.Item.CONTENT_INFO);
+		
+		if (withUIDs)
+			prefetcher.addItem(UIDFolder.FetchProfileItem.UID);
+		
+		if (normalizedHeaders != null)
+			for (String name : normalizedHeaders)
+				prefetcher.addHeader(name);
+		
+		prefetcher.prefetch(folder, messages);
+		
+		Arrays.sort(messages, new MessageDateComparator());
+		
+		return messages;
+	}
+	
+	/*
+	 * Checks every folder named by the URIs, and with the recursive option all of their
+	 * subfolders too, against a single set of digests.  The folders are visited in the
+	 * order the URIs were given, each followed by its subfolders, so the copy which is kept
+	 * is the earliest message in the first folder which holds it.
+	 */
+	private void run(List<String> folderURIs, boolean recursive, MessageHasher hasher,
+			ParallelMessageHasher parallelHasher, int fetchers, DigestCache cache, boolean deleteDuplicates)
+					throws IOException {
+		String digestLabel = hasher.getAlgorithm() + (normalizedHeaders != null ? " (normalized)" : "");
+		
+		DuplicateReport report = new DuplicateReport(digestLabel, hasher.getDigestLength(), deleteDuplicates);
+		
+		boolean multipleFolders = recursive || folderURIs.size() > 1;
+		
+		try {
+			for (int i = 0; i < folderURIs.size(); i++) {
+				String folderURI = folderURIs.get(i);
+				Folder root = i == 0 ? getMainFolder() : connectToFolder(folderURI);
+				
+				try {
+					for (Folder folder : listFolders(root, recursive)) {
+						if (multipleFolders)
+							System.out.println("===== Folder " + folder.getFullName() + " =====\n");
+						
+						checksumFolder(folderURI, folder, hasher, parallelHasher, fetchers, cache, report);
+					}
+				} finally {
+					if (i > 0)
+						releaseFolder(root);
+				}
+			}
+		} catch (MessagingException | URISyntaxException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		
+		report.printSummary();
+	}
+	
+	private List<Folder> listFolders(Folder root, boolean recursive) throws MessagingException {
+		List<Folder> folders = new ArrayList<Folder>();
+		
+		if ((root.getType() & Folder.HOLDS_MESSAGES) != 0)
+			folders.add(root);
+		else if (!recursive)
+			System.err.println("Folder " + root.getFullName() + " cannot contain messages.");
+		
+		if (recursive && (root.getType() & Folder.HOLDS_FOLDERS) != 0) {
+			Folder[] descendants = root.list("*");
+			
+			Arrays.sort(descendants, new FolderPathComparator());
+			
+			for (Folder folder : descendants)
+				if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+					folders.add(folder);
+		}
+		
+		return folders;
+	}
 
-	private void run(MessageDigest digester, boolean deleteDuplicates) throws IOException  {
+	/*
+	 * Hashes every message in the folder, then makes the duplicate decisions in date order.
+	 * With a parallel hasher, the messages are fetched and hashed on separate threads, and
+	 * each extra fetcher uses its own connection borrowed from the shared pool.  With a
+	 * cache, only messages whose UIDs are not already in the cache are fetched at all.
+	 */
+	private void checksumFolder(String folderURI, Folder folder, MessageHasher hasher, ParallelMessageHasher parallelHasher,
+			int fetchers, DigestCache cache, DuplicateReport report)
+					throws MessagingException, URISyntaxException, IOException {
+		List<StoreLease> leases = new ArrayList<StoreLease>();
+		List<Folder> extraFolders = new ArrayList<Folder>();
+		
 		try {
-			Folder folder = getMainFolder();
+			Message[] messages = openAndSortMessages(folder, report.deleteDuplicates, parallelHasher != null || cache != null);
 			
-			int flags = folder.getType();
+			byte[][] digests = new byte[messages.length][];
 			
-			if ((flags & Folder.HOLDS_MESSAGES) == 0) {
-				System.err.println("Folder " + folder.getFullName() + " cannot contain messages.");
-				return;
+			// Without UIDs there is nothing to key the cache on, and no way for another
+			// connection to find the same messages.
+			UIDFolder uidFolder = folder instanceof UIDFolder ? (UIDFolder)folder : null;
+			
+			if (uidFolder == null) {
+				cache = null;
+				fetchers = 1;
 			}
-						
-			FlagTerm notDeleted = new FlagTerm(new Flags(Flags.Flag.DELETED), false);
 			
-			folder.open(deleteDuplicates? Folder.READ_WRITE : Folder.READ_ONLY);
+			String cacheKey = cache == null ? null : getFolderKey(folder);
+			long uidValidity = cache == null ? 0 : uidFolder.getUIDValidity();
 			
-			Message[] messages = folder.search(notDeleted);
+			List<Integer> uncached = new ArrayList<Integer>();
 			
-			Arrays.sort(messages, new MessageDateComparator());
+			for (int i = 0; i < messages.length; i++) {
+				if (cache != null)
+					digests[i] = cache.get(cacheKey, uidValidity, uidFolder.getUID(messages[i]));
+				
+				if (digests[i] == null)
+					uncached.add(i);
+			}
 			
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			Message[] toHash = new Message[uncached.size()];
 			
-			Map<String, Message> messageMap = new HashMap<String, Message>();
+			for (int i = 0; i < toHash.length; i++)
+				toHash[i] = messages[uncached.get(i)];
 			
-			String algorithm = digester.getAlgorithm();
+			if (cache != null)
+				System.err.println("Found " + (messages.length - toHash.length) + " of " + messages.length +
+						" digests in the cache");
 			
-			int deleted = 0;
-
-			for (Message message : messages) {
-				displayMessage(message, System.out);
-				
-				baos.reset();
-				
-				message.writeTo(baos);
-				
-				byte[] bytes = baos.toByteArray();
-				
-				digester.reset();
+			long startTime = System.currentTimeMillis();
+			
+			byte[][] hashed;
+			
+			if (parallelHasher != null) {
+				for (int i = 1; i < fetchers && toHash.length > 0; i++) {
+					StoreLease lease = leaseStore(folderURI);
+					leases.add(lease);
+					
+					Folder extraFolder = lease.getStore().getFolder(folder.getFullName());
+					extraFolder.open(Folder.READ_ONLY);
+					extraFolders.add(extraFolder);
+				}
 				
-				byte[] digest = digester.digest(bytes);
+				hashed = parallelHasher.hash(folder, toHash, extraFolders);
 				
-				String digestString = toHexString(digest);
+				System.err.println("Hashed " + toHash.length + " messages in " + (System.currentTimeMillis() - startTime) +
+						" ms using " + (1 + extraFolders.size()) + " fetchers");
+			} else {
+				hashed = new byte[toHash.length][];
 				
-				boolean alreadySeen = messageMap.containsKey(digestString);
+				for (int i = 0; i < toHash.length; i++)
+					hashed[i] = normalizedHeaders != null ?
+							MessageDigests.digestNormalized(toHash[i], normalizedHeaders, hasher) :
+								MessageDigests.digest(toHash[i], hasher);
+			}
+			
+			for (int i = 0; i < toHash.length; i++) {
+				int index = uncached.get(i);
 				
-				System.out.print(algorithm + ": " + digestString);
+				digests[index] = hashed[i];
 				
-				if (alreadySeen) {
-					System.out.print(" [ALREADY SEEN");
-					
-					if (deleteDuplicates) {
-						message.setFlag(Flag.DELETED, true);
-						System.out.print(", FLAGGED FOR DELETION");
-						deleted++;
-					}
-					
-					System.out.print("]");
-				} else
-					messageMap.put(digestString,  message);
-				
-				System.out.println();
-				System.out.println();
+				if (cache != null && hashed[i] != null)
+					cache.put(cacheKey, uidValidity, uidFolder.getUID(messages[index]), hashed[i]);
 			}
 			
-			if (deleteDuplicates)
-				System.out.println("\nSUMMARY\n\n" + messages.length + " messages were found, " + deleted + " were marked as duplicates");
+			if (cache != null)
+				cache.flush();
 			
-			folder.close(false);
-		} catch (MessagingException e) {
-			e.printStackTrace();
-			System.exit(1);
+			for (int i = 0; i < messages.length; i++)
+				report.check(messages[i], digests[i]);
+		} finally {
+			for (Folder extraFolder : extraFolders)
+				closeQuietly(extraFolder);
+			
+			for (StoreLease lease : leases)
+				lease.close();
+			
+			closeQuietly(folder);
 		}
 	}
 	
 	/*
-	 * The following code was borrowed from StackOverflow
-	 * http://stackoverflow.com/questions/9655181/how-to-convert-a-byte-array-to-a-hex-string-in-java/9855338#9855338
+	 * Prints each message with its digest, and remembers the digests so that later
+	 * copies of the same message can be reported and optionally flagged for deletion.
+	 * The digests are kept as raw bytes in a DigestSet, so that the digests of millions
+	 * of messages across a whole account fit in a small heap.
 	 */
-	
-	private final char[] HEXADECIMAL_DIGITS = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-	
-	private String toHexString(byte[] bytes) {    
-	    char[] hexChars = new char[bytes.length * 2];
-	    int v;
-	    for ( int j = 0; j < bytes.length; j++ ) {
-	        v = bytes[j] & 0xFF;
-	        hexChars[j*2] = HEXADECIMAL_DIGITS[v >>> 4];
-	        hexChars[j*2 + 1] = HEXADECIMAL_DIGITS[v & 0x0F];
-	    }
-	    return new String(hexChars);
+	private class DuplicateReport {
+		private final DigestSet seen;
+		private final String algorithm;
+		private final boolean deleteDuplicates;
+		private int messages = 0;
+		private int duplicates = 0;
+		
+		DuplicateReport(String algorithm, int digestLength, boolean deleteDuplicates) {
+			this.seen = new DigestSet(digestLength);
+			this.algorithm = algorithm;
+			this.deleteDuplicates = deleteDuplicates;
+		}
+		
+		void check(Message message, byte[] digest) throws MessagingException, IOException {
+			messages++;
+			
+			displayMessage(message, System.out);
+			
+			if (digest == null) {
+				System.out.println(algorithm + ": [UNAVAILABLE]");
+				System.out.println();
+				return;
+			}
+			
+			System.out.print(algorithm + ": " + MessageDigests.toHexString(digest));
+			
+			if (!seen.add(digest)) {
+				System.out.print(" [ALREADY SEEN");
+				
+				duplicates++;
+				
+				if (deleteDuplicates) {
+					message.setFlag(Flag.DELETED, true);
+					System.out.print(", FLAGGED FOR DELETION");
+				}
+				
+				System.out.print("]");
+			}
+			
+			System.out.println();
+			System.out.println();
+		}
+		
+		void printSummary() {
+			System.out.println("\nSUMMARY\n\n" + messages + " messages were found, " + duplicates +
+					(deleteDuplicates ? " were marked as duplicates" : " were duplicates"));
+		}
 	}
 }
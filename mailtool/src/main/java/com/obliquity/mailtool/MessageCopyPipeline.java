@@ -0,0 +1,382 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import com.sun.mail.imap.IMAPFolder;
+
+/*
+ * Copies messages between folders on different servers in chunks, with reading from the
+ * source and appending to the destination running at the same time.
+ * 
+ * A reader thread downloads each message and groups the messages into chunks, which are
+ * limited both by message count (mailtool.copy.chunksize, default 100) and by total size
+ * (mailtool.copy.chunkbytes, default 32 MB).  Chunks are passed through a small bounded
+ * queue to the calling thread, which appends each chunk to the destination folder with a
+ * single appendMessages() call.  JavaMail still sends one APPEND command per message, but
+ * the reader keeps downloading while they are sent.  At most a few chunks are ever held
+ * in memory, however large the folder.  Progress is reported every mailtool.copy.reportinterval seconds (default 10).
+ */
+public class MessageCopyPipeline {
+	public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("mailtool.copy.chunksize", 100);
+	public static final long DEFAULT_CHUNK_BYTES = Long.getLong("mailtool.copy.chunkbytes", 32L * 1024 * 1024);
+	
+	private static final int QUEUE_CAPACITY = 2;
+	
+	private final Folder fromFolder;
+	private final Folder toFolder;
+	
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private long chunkBytes = DEFAULT_CHUNK_BYTES;
+	private long reportInterval = 1000L * Integer.getInteger("mailtool.copy.reportinterval", 10);
+	private PrintStream progressStream = System.out;
+	private String progressLabel = "";
+	
+	private ChunkListener chunkListener = null;
+	private MessageDedupIndex duplicateIndex = null;
+	
+	public interface ChunkListener {
+		/*
+		 * Called after each chunk has been appended to the destination, with the highest
+		 * source UID in the chunk, or -1 if the source folder does not support UIDs.
+		 */
+		public void chunkCopied(long lastUID) throws MessagingException;
+	}
+	
+	/*
+	 * Both folders must already be open, the destination for writing.
+	 */
+	public MessageCopyPipeline(Folder fromFolder, Folder toFolder) {
+		this.fromFolder = fromFolder;
+		this.toFolder = toFolder;
+	}
+	
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+	}
+	
+	public void setChunkBytes(long chunkBytes) {
+		this.chunkBytes = chunkBytes > 0 ? chunkBytes : DEFAULT_CHUNK_BYTES;
+	}
+	
+	/*
+	 * Set the progress stream to null to suppress progress reports.
+	 */
+	public void setProgressStream(PrintStream progressStream) {
+		this.progressStream = progressStream;
+	}
+	
+	/*
+	 * The label is printed at the start of each progress report.
+	 */
+	public void setProgressLabel(String progressLabel) {
+		this.progressLabel = progressLabel == null ? "" : progressLabel;
+	}
+	
+	public void setChunkListener(ChunkListener chunkListener) {
+		this.chunkListener = chunkListener;
+	}
+	
+	/*
+	 * If an index of the destination folder is set, messages already in the index are
+	 * skipped.  Messages with a Message-ID are checked before they are downloaded.
+	 */
+	public void setDuplicateIndex(MessageDedupIndex duplicateIndex) {
+		this.duplicateIndex = duplicateIndex;
+	}
+	
+	/*
+	 * Copies every message returned by the search, which must be over the source folder.
+	 */
+	public CopyStatistics copy(PagedMessageSearch search) throws MessagingException {
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.SIZE);
+		profile.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+		
+		if (fromFolder instanceof UIDFolder)
+			profile.add(UIDFolder.FetchProfileItem.UID);
+		
+		if (duplicateIndex != null)
+			profile.add(FetchProfile.Item.ENVELOPE);
+		
+		search.setPrefetcher(new MessagePrefetcher(profile));
+		
+		BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_CAPACITY);
+		
+		Reader reader = new Reader(search, queue);
+		
+		Thread readerThread = new Thread(reader, "MessageCopyPipeline-reader");
+		
+		CopyStatistics statistics = new CopyStatistics();
+		
+		long lastReport = statistics.startTime;
+		
+		readerThread.start();
+		
+		try {
+			while (true) {
+				Chunk chunk = queue.take();
+				
+				if (chunk.isEndMarker())
+					break;
+				
+				toFolder.appendMessages(chunk.messages.toArray(new Message[chunk.messages.size()]));
+				
+				statistics.add(chunk.messages.size(), chunk.bytes);
+				
+				if (chunkListener != null)
+					chunkListener.chunkCopied(chunk.lastUID);
+				
+				long now = System.currentTimeMillis();
+				
+				if (progressStream != null && now - lastReport >= reportInterval) {
+					progressStream.println("\t\t" + progressLabel + statistics);
+					progressStream.flush();
+					lastReport = now;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("Interrupted whilst copying messages", e);
+		} finally {
+			// Stop the reader if we are bailing out early.
+			readerThread.interrupt();
+			
+			try {
+				readerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (reader.failure != null)
+			throw new MessagingException("Failed to read messages from " + fromFolder.getFullName(), reader.failure);
+		
+		statistics.finish(reader.skipped);
+		
+		return statistics;
+	}
+	
+	private class Reader implements Runnable {
+		private final PagedMessageSearch search;
+		private final BlockingQueue<Chunk> queue;
+		private volatile Exception failure = null;
+		private int skipped = 0;
+		
+		Reader(PagedMessageSearch search, BlockingQueue<Chunk> queue) {
+			this.search = search;
+			this.queue = queue;
+		}
+		
+		public void run() {
+			try {
+				Chunk chunk = new Chunk();
+				
+				Message[] page;
+				
+				while ((page = search.nextPage()) != null) {
+					for (Message message : page) {
+						String messageID = duplicateIndex == null ? null : MessageDedupIndex.getMessageID(message);
+						
+						if (messageID != null && duplicateIndex.containsMessageID(messageID)) {
+							skipped++;
+							continue;
+						}
+						
+						// A new buffer for each message, sized to fit, which the copy then shares
+						// rather than taking a copy of its own.
+						int size = message.getSize();
+						
+						MessageBuffer buffer = new MessageBuffer(size > 0 ? size : 32768);
+						
+						message.writeTo(buffer);
+						
+						byte[] bytes = buffer.getBuffer();
+						int length = buffer.size();
+						
+						if (duplicateIndex != null && messageID == null && duplicateIndex.containsContent(bytes, 0, length)) {
+							skipped++;
+							continue;
+						}
+						
+						chunk.add(new BufferedMessage(bytes, length, message.getFlags(), message.getReceivedDate()), length,
+								fromFolder instanceof UIDFolder ? ((UIDFolder)fromFolder).getUID(message) : -1);
+						
+						if (chunk.messages.size() >= chunkSize || chunk.bytes >= chunkBytes) {
+							queue.put(chunk);
+							chunk = new Chunk();
+						}
+						
+						if (Thread.interrupted())
+							throw new InterruptedException();
+					}
+				}
+				
+				if (!chunk.messages.isEmpty())
+					queue.put(chunk);
+			} catch (InterruptedException e) {
+				// The writer has stopped, so there is nobody left to take the end marker.
+				return;
+			} catch (MessagingException | IOException | RuntimeException e) {
+				failure = e;
+			}
+			
+			try {
+				queue.put(Chunk.END_MARKER);
+			} catch (InterruptedException e) {
+				// The writer has already stopped.
+			}
+		}
+	}
+	
+	private static class Chunk {
+		static final Chunk END_MARKER = new Chunk();
+		
+		final List<Message> messages = new ArrayList<Message>();
+		long bytes = 0;
+		long lastUID = -1;
+		
+		void add(Message message, int size, long uid) {
+			messages.add(message);
+			bytes += size;
+			lastUID = uid;
+		}
+		
+		boolean isEndMarker() {
+			return this == END_MARKER;
+		}
+	}
+	
+	/*
+	 * Gives access to the buffer itself, so that the message need not be copied out of it.
+	 */
+	private static class MessageBuffer extends ByteArrayOutputStream {
+		MessageBuffer(int size) {
+			super(size);
+		}
+		
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+	
+	/*
+	 * A downloaded copy of a source message.  It is written out byte-for-byte as it was
+	 * read, and keeps the flags and received date of the original, which APPEND preserves.
+	 */
+	private static class BufferedMessage extends MimeMessage {
+		private final Date receivedDate;
+		
+		BufferedMessage(byte[] bytes, int length, Flags flags, Date receivedDate) throws MessagingException {
+			super(null, new SharedByteArrayInputStream(bytes, 0, length));
+			
+			this.receivedDate = receivedDate;
+			
+			// The server sets \Recent itself, and rejects it in an APPEND.
+			flags.remove(Flags.Flag.RECENT);
+			
+			setFlags(flags, true);
+		}
+		
+		public Date getReceivedDate() {
+			return receivedDate;
+		}
+	}
+	
+	public static class CopyStatistics {
+		private final DecimalFormat dfmt = new DecimalFormat("0.0");
+		
+		private final long startTime = System.currentTimeMillis();
+		private long endTime = 0;
+		private int messages = 0;
+		private long bytes = 0;
+		private int skipped = 0;
+		
+		void add(int messages, long bytes) {
+			this.messages += messages;
+			this.bytes += bytes;
+		}
+		
+		void finish(int skipped) {
+			this.skipped = skipped;
+			endTime = System.currentTimeMillis();
+		}
+		
+		public int getMessages() {
+			return messages;
+		}
+		
+		public int getSkipped() {
+			return skipped;
+		}
+		
+		public long getBytes() {
+			return bytes;
+		}
+		
+		public double getSeconds() {
+			long end = endTime > 0 ? endTime : System.currentTimeMillis();
+			
+			return (double)(end - startTime)/1000.0;
+		}
+		
+		public double getMessagesPerSecond() {
+			double seconds = getSeconds();
+			
+			return seconds > 0.0 ? (double)messages/seconds : 0.0;
+		}
+		
+		public double getMegabytesPerSecond() {
+			double seconds = getSeconds();
+			
+			return seconds > 0.0 ? (double)bytes/(1048576.0 * seconds) : 0.0;
+		}
+		
+		public String toString() {
+			return messages + " messages, " + dfmt.format((double)bytes/1048576.0) + " MB, " +
+					dfmt.format(getSeconds()) + " seconds, " + dfmt.format(getMessagesPerSecond()) + " msg/s, " +
+					dfmt.format(getMegabytesPerSecond()) + " MB/s" + (skipped > 0 ? ", " + skipped + " duplicates skipped" : "");
+		}
+	}
+}
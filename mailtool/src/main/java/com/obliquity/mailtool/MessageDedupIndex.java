@@ -0,0 +1,152 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * An index of the messages already present in a destination folder, used to skip
+ * messages which would otherwise be copied a second time.
+ * 
+ * Messages are identified by their Message-ID header, which is fetched in bulk as part of
+ * the envelope.  Messages without a Message-ID are identified instead by an MD5 digest of
+ * their complete content, which means downloading them.  Both are held as 16-byte MD5
+ * digests in compact DigestSets rather than as strings.
+ */
+public class MessageDedupIndex {
+	private static final String ALGORITHM = "MD5";
+	private static final int DIGEST_LENGTH = 16;
+	
+	private final DigestSet messageIDs = new DigestSet(DIGEST_LENGTH);
+	private final DigestSet contents = new DigestSet(DIGEST_LENGTH);
+	private final MessageDigest digester;
+	
+	public MessageDedupIndex() {
+		try {
+			digester = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support MD5.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/*
+	 * Builds an index of every message in the folder, which must already be open.
+	 */
+	public static MessageDedupIndex build(Folder folder) throws MessagingException, IOException {
+		MessageDedupIndex index = new MessageDedupIndex();
+		
+		PagedMessageSearch search = new PagedMessageSearch(folder, null);
+		
+		FetchProfile profile = new FetchProfile();
+		profile.add(FetchProfile.Item.ENVELOPE);
+		
+		search.setPrefetcher(new MessagePrefetcher(profile));
+		
+		Message[] page;
+		
+		while ((page = search.nextPage()) != null)
+			for (Message message : page)
+				index.add(message);
+		
+		return index;
+	}
+	
+	public int getMessageIDCount() {
+		return messageIDs.size();
+	}
+	
+	public int getContentDigestCount() {
+		return contents.size();
+	}
+	
+	public synchronized void add(Message message) throws MessagingException, IOException {
+		String messageID = getMessageID(message);
+		
+		if (messageID != null)
+			messageIDs.add(digestMessageID(messageID));
+		else
+			contents.add(MessageDigests.digest(message, digester));
+	}
+	
+	/*
+	 * Returns true if the message is in the index.  If the message has no Message-ID, its
+	 * content is downloaded to compute its digest.
+	 */
+	public synchronized boolean contains(Message message) throws MessagingException, IOException {
+		String messageID = getMessageID(message);
+		
+		if (messageID != null)
+			return messageIDs.contains(digestMessageID(messageID));
+		else
+			return contents.contains(MessageDigests.digest(message, digester));
+	}
+	
+	public synchronized boolean containsMessageID(String messageID) {
+		return messageIDs.contains(digestMessageID(messageID));
+	}
+	
+	/*
+	 * Checks the digest of a message's raw bytes, for a message without a Message-ID which
+	 * has already been downloaded.
+	 */
+	public boolean containsContent(byte[] rawMessage) {
+		return containsContent(rawMessage, 0, rawMessage.length);
+	}
+	
+	public synchronized boolean containsContent(byte[] rawMessage, int offset, int length) {
+		digester.reset();
+		
+		digester.update(rawMessage, offset, length);
+		
+		return contents.contains(digester.digest());
+	}
+	
+	public static String getMessageID(Message message) throws MessagingException {
+		String messageID = (message instanceof MimeMessage) ? ((MimeMessage)message).getMessageID() : null;
+		
+		if (messageID == null)
+			return null;
+		
+		messageID = messageID.trim();
+		
+		return messageID.length() > 0 ? messageID : null;
+	}
+	
+	private byte[] digestMessageID(String messageID) {
+		digester.reset();
+		
+		return digester.digest(messageID.getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/*
+ * Digests of complete messages, shared by the tools which detect duplicates.
+ */
+public class MessageDigests {
+	/*
+	 * Computes the digest of the message exactly as it is stored on the server.
+	 * 
+	 * The message is written straight through a DigestOutputStream which discards the bytes,
+	 * so the message is never held in memory.  For IMAP, writeTo() reads the message from
+	 * the server in blocks, so the digest is computed as the message arrives.
+	 */
+	public static byte[] digest(Message message, MessageDigest digester) throws IOException, MessagingException {
+		digester.reset();
+		
+		DigestOutputStream dos = new DigestOutputStream(OutputStream.nullOutputStream(), digester);
+		
+		message.writeTo(dos);
+		
+		dos.close();
+		
+		return digester.digest();
+	}
+	
+	/*
+	 * As above, but using any MessageHasher.
+	 */
+	public static byte[] digest(Message message, MessageHasher hasher) throws IOException, MessagingException {
+		hasher.reset();
+		
+		OutputStream os = new HasherOutputStream(hasher);
+		
+		message.writeTo(os);
+		
+		os.close();
+		
+		return hasher.digest();
+	}
+	
+	/*
+	 * The headers used by the normalized digest when no others are given.  They are set by
+	 * the sender, so two deliveries of the same mail agree on them, unlike Received: and the
+	 * various X- headers added along the way.
+	 */
+	public static final String[] DEFAULT_NORMALIZED_HEADERS = { "From", "To", "Cc", "Subject", "Date", "Message-ID" };
+	
+	/*
+	 * Computes the digest of a canonical form of the message, so that copies which differ
+	 * only in their delivery headers or transfer encoding have the same digest.
+	 */
+	public static byte[] digestNormalized(Message message, String[] headerNames, MessageHasher hasher)
+			throws IOException, MessagingException {
+		hasher.reset();
+		
+		OutputStream os = new HasherOutputStream(hasher);
+		
+		writeNormalized(message, headerNames, os);
+		
+		os.close();
+		
+		return hasher.digest();
+	}
+	
+	/*
+	 * Writes the canonical form of the message: each of the selected headers as a lower-case
+	 * name and an unfolded value, followed by the decoded content of every leaf part with
+	 * its base MIME type.  Text parts have their carriage returns removed, so that CRLF and
+	 * LF line endings agree.
+	 * 
+	 * Each part is copied from getInputStream() in small blocks, so the decoded content is
+	 * never held in memory.  For IMAP, the parts are fetched one at a time by section.
+	 * 
+	 * A message with a Content-Type which cannot be parsed is written as it is, without
+	 * normalization, so that one malformed message does not stop the whole run.
+	 */
+	public static void writeNormalized(Message message, String[] headerNames, OutputStream os)
+			throws IOException, MessagingException {
+		if (!hasValidContentTypes(message)) {
+			message.writeTo(os);
+			return;
+		}
+		
+		for (String name : headerNames) {
+			String[] values = message.getHeader(name);
+			
+			if (values == null)
+				continue;
+			
+			for (String value : values)
+				writeText(os, name.toLowerCase() + ":" + MimeUtility.unfold(value).trim() + "\n");
+		}
+		
+		writeNormalizedPart(message, os);
+	}
+	
+	/*
+	 * Checks every Content-Type in the MIME structure before anything is written.  For
+	 * IMAP this only needs the BODYSTRUCTURE, not the content.
+	 */
+	private static boolean hasValidContentTypes(Part part) throws IOException, MessagingException {
+		try {
+			new ContentType(part.getContentType());
+		} catch (ParseException e) {
+			return false;
+		}
+		
+		if (part.isMimeType("multipart/*")) {
+			Multipart multipart = (Multipart)part.getContent();
+			
+			for (int i = 0; i < multipart.getCount(); i++)
+				if (!hasValidContentTypes(multipart.getBodyPart(i)))
+					return false;
+		}
+		
+		return true;
+	}
+	
+	private static void writeNormalizedPart(Part part, OutputStream os) throws IOException, MessagingException {
+		ContentType contentType = new ContentType(part.getContentType());
+		
+		String baseType = contentType.getBaseType().toLowerCase();
+		
+		writeText(os, "\n" + baseType + "\n");
+		
+		if (part.isMimeType("multipart/*")) {
+			Multipart multipart = (Multipart)part.getContent();
+			
+			for (int i = 0; i < multipart.getCount(); i++)
+				writeNormalizedPart(multipart.getBodyPart(i), os);
+			
+			return;
+		}
+		
+		boolean text = baseType.startsWith("text/");
+		
+		byte[] buffer = new byte[8192];
+		
+		InputStream is = part.getInputStream();
+		
+		try {
+			int n;
+			
+			while ((n = is.read(buffer)) > 0) {
+				if (text)
+					n = removeCarriageReturns(buffer, n);
+				
+				os.write(buffer, 0, n);
+			}
+		} finally {
+			is.close();
+		}
+	}
+	
+	private static int removeCarriageReturns(byte[] buffer, int length) {
+		int j = 0;
+		
+		for (int i = 0; i < length; i++)
+			if (buffer[i] != '\r')
+				buffer[j++] = buffer[i];
+		
+		return j;
+	}
+	
+	private static void writeText(OutputStream os, String text) throws IOException {
+		os.write(text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/*
+	 * Returns a hasher for the named algorithm.  CRC32, CRC32C and ADLER32 are fast
+	 * non-cryptographic checksums; any other name is looked up as a MessageDigest
+	 * algorithm, such as MD5 or SHA-256.
+	 */
+	public static MessageHasher createHasher(String algorithm) throws NoSuchAlgorithmException {
+		switch (algorithm.toUpperCase()) {
+		case "CRC32":
+			return new ChecksumHasher("CRC32", new CRC32());
+			
+		case "CRC32C":
+			return new ChecksumHasher("CRC32C", new CRC32C());
+			
+		case "ADLER32":
+			return new ChecksumHasher("ADLER32", new Adler32());
+			
+		default:
+			return new MessageDigestHasher(MessageDigest.getInstance(algorithm));
+		}
+	}
+	
+	/*
+	 * An OutputStream which passes everything written to it into a hasher and discards it.
+	 */
+	public static class HasherOutputStream extends OutputStream {
+		private final MessageHasher hasher;
+		
+		public HasherOutputStream(MessageHasher hasher) {
+			this.hasher = hasher;
+		}
+		
+		public void write(int b) {
+			hasher.update(new byte[] { (byte)b }, 0, 1);
+		}
+		
+		public void write(byte[] bytes, int offset, int length) {
+			hasher.update(bytes, offset, length);
+		}
+	}
+	
+	private static class MessageDigestHasher implements MessageHasher {
+		private final MessageDigest digester;
+		
+		MessageDigestHasher(MessageDigest digester) {
+			this.digester = digester;
+		}
+		
+		public String getAlgorithm() {
+			return digester.getAlgorithm();
+		}
+		
+		public int getDigestLength() {
+			return digester.getDigestLength();
+		}
+		
+		public void reset() {
+			digester.reset();
+		}
+		
+		public void update(byte[] bytes, int offset, int length) {
+			digester.update(bytes, offset, length);
+		}
+		
+		public byte[] digest() {
+			return digester.digest();
+		}
+	}
+	
+	private static class ChecksumHasher implements MessageHasher {
+		private final String algorithm;
+		private final Checksum checksum;
+		
+		ChecksumHasher(String algorithm, Checksum checksum) {
+			this.algorithm = algorithm;
+			this.checksum = checksum;
+		}
+		
+		public String getAlgorithm() {
+			return algorithm;
+		}
+		
+		public int getDigestLength() {
+			return 4;
+		}
+		
+		public void reset() {
+			checksum.reset();
+		}
+		
+		public void update(byte[] bytes, int offset, int length) {
+			checksum.update(bytes, offset, length);
+		}
+		
+		public byte[] digest() {
+			int value = (int)checksum.getValue();
+			
+			checksum.reset();
+			
+			return new byte[] { (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value };
+		}
+	}
+	
+	/*
+	 * The following code was borrowed from StackOverflow
+	 * http://stackoverflow.com/questions/9655181/how-to-convert-a-byte-array-to-a-hex-string-in-java/9855338#9855338
+	 */
+	
+	private static final char[] HEXADECIMAL_DIGITS = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+	
+	public static String toHexString(byte[] bytes) {    
+	    char[] hexChars = new char[bytes.length * 2];
+	    int v;
+	    for ( int j = 0; j < bytes.length; j++ ) {
+	        v = bytes[j] & 0xFF;
+	        hexChars[j*2] = HEXADECIMAL_DIGITS[v >>> 4];
+	        hexChars[j*2 + 1] = HEXADECIMAL_DIGITS[v & 0x0F];
+	    }
+	    return new String(hexChars);
+	}
+}
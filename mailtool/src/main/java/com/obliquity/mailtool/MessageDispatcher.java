@@ -0,0 +1,251 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/*
+ * Passes messages to MessageHandlers on worker threads, so that a slow handler never holds
+ * up the thread which delivers folder events.
+ * 
+ * Messages wait in a bounded queue, whose capacity can be set via the system property
+ * mailtool.dispatch.queuesize (default 10000).  When the queue is full, dispatch() blocks
+ * until there is room, which slows the event thread down to the pace of the handlers
+ * rather than letting the backlog grow without limit.
+ * 
+ * Each worker has its own handler, so handlers need not be thread-safe, although the
+ * same thread-safe handler may be passed for every worker.  A worker takes as
+ * many waiting messages as it can, up to mailtool.dispatch.batchsize (default 500), and
+ * prefetches each folder's share of them in one FETCH before handling them in order.
+ */
+public class MessageDispatcher {
+	public static final int DEFAULT_QUEUE_SIZE = Integer.getInteger("mailtool.dispatch.queuesize", 10000);
+	public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("mailtool.dispatch.batchsize", 500);
+	
+	/*
+	 * Called by a worker once it has finished with a folder's messages, since prefetching
+	 * them may have interrupted an IDLE on that folder.  Every message of the batch is
+	 * either in handled or in failed.
+	 */
+	public interface BatchListener {
+		public void batchHandled(Folder folder, Message[] handled, Message[] failed);
+	}
+	
+	private static final Entry SHUTDOWN = new Entry(null, null);
+	
+	private final BlockingQueue<Entry> queue;
+	private final int batchSize;
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	
+	private BatchListener batchListener = null;
+	
+	private volatile boolean shutdown = false;
+	
+	public MessageDispatcher(List<MessageHandler> handlers) {
+		this(handlers, DEFAULT_QUEUE_SIZE, DEFAULT_BATCH_SIZE);
+	}
+	
+	public MessageDispatcher(List<MessageHandler> handlers, int queueSize, int batchSize) {
+		if (handlers.isEmpty())
+			throw new IllegalArgumentException("At least one handler is required");
+		
+		this.queue = new ArrayBlockingQueue<Entry>(queueSize > 0 ? queueSize : DEFAULT_QUEUE_SIZE);
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+		
+		for (int i = 0; i < handlers.size(); i++)
+			workers.add(new Worker(handlers.get(i), "dispatcher-" + i));
+	}
+	
+	public void setBatchListener(BatchListener batchListener) {
+		this.batchListener = batchListener;
+	}
+	
+	public void start() {
+		for (Worker worker : workers)
+			worker.start();
+	}
+	
+	/*
+	 * Queues the messages for handling, waiting for room in the queue if need be.
+	 */
+	public void dispatch(Folder folder, Message[] messages) throws InterruptedException {
+		if (shutdown)
+			throw new IllegalStateException("The dispatcher has been shut down");
+		
+		for (Message message : messages) {
+			queue.put(new Entry(folder, message));
+			dispatched.incrementAndGet();
+		}
+	}
+	
+	public int getBacklog() {
+		return queue.size();
+	}
+	
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+	
+	public long getHandledCount() {
+		return handled.get();
+	}
+	
+	public long getFailedCount() {
+		return failed.get();
+	}
+	
+	/*
+	 * Lets the workers finish every message already queued, then closes the handlers.  A
+	 * handler which is shared by several workers is closed once, after all of them have
+	 * stopped.
+	 */
+	public void shutdown() throws InterruptedException {
+		shutdown = true;
+		
+		for (int i = 0; i < workers.size(); i++)
+			queue.put(SHUTDOWN);
+		
+		for (Worker worker : workers)
+			worker.join();
+		
+		Set<MessageHandler> handlers = Collections.newSetFromMap(new IdentityHashMap<MessageHandler, Boolean>());
+		
+		for (Worker worker : workers) {
+			if (!handlers.add(worker.handler))
+				continue;
+			
+			try {
+				worker.handler.close();
+			} catch (MessagingException | IOException e) {
+				System.err.println("Failed to close handler : " + e.getMessage());
+			}
+		}
+	}
+	
+	private class Worker extends Thread {
+		private final MessageHandler handler;
+		private final MessagePrefetcher prefetcher;
+		
+		Worker(MessageHandler handler, String name) {
+			super(name);
+			this.handler = handler;
+			this.prefetcher = new MessagePrefetcher(handler.getFetchProfile());
+			setDaemon(true);
+		}
+		
+		public void run() {
+			List<Entry> batch = new ArrayList<Entry>(batchSize);
+			
+			try {
+				while (true) {
+					batch.add(queue.take());
+					
+					queue.drainTo(batch, batchSize - 1);
+					
+					boolean stop = batch.remove(SHUTDOWN);
+					
+					if (stop) {
+						// Leave any other shutdown markers for the other workers.
+						while (batch.remove(SHUTDOWN))
+							queue.put(SHUTDOWN);
+					}
+					
+					handleBatch(batch);
+					
+					batch.clear();
+					
+					if (stop)
+						break;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void handleBatch(List<Entry> batch) {
+			Map<Folder, List<Message>> byFolder = new LinkedHashMap<Folder, List<Message>>();
+			
+			for (Entry entry : batch)
+				byFolder.computeIfAbsent(entry.folder, k -> new ArrayList<Message>()).add(entry.message);
+			
+			for (Map.Entry<Folder, List<Message>> entry : byFolder.entrySet()) {
+				Folder folder = entry.getKey();
+				Message[] messages = entry.getValue().toArray(new Message[0]);
+				
+				try {
+					prefetcher.prefetch(folder, messages);
+				} catch (MessagingException e) {
+					System.err.println("Failed to prefetch messages from " + folder.getFullName() + " : " + e.getMessage());
+				}
+				
+				List<Message> handledMessages = new ArrayList<Message>(messages.length);
+				List<Message> failedMessages = new ArrayList<Message>();
+				
+				for (Message message : messages) {
+					try {
+						handler.handleMessage(message);
+						handled.incrementAndGet();
+						handledMessages.add(message);
+					} catch (MessagingException | IOException | RuntimeException e) {
+						failed.incrementAndGet();
+						failedMessages.add(message);
+						System.err.println("Failed to handle a message from " + folder.getFullName() + " : " + e.getMessage());
+					}
+				}
+				
+				if (batchListener != null)
+					batchListener.batchHandled(folder, handledMessages.toArray(new Message[0]),
+							failedMessages.toArray(new Message[0]));
+			}
+		}
+	}
+	
+	private static class Entry {
+		final Folder folder;
+		final Message message;
+		
+		Entry(Folder folder, Message message) {
+			this.folder = folder;
+			this.message = message;
+		}
+	}
+}
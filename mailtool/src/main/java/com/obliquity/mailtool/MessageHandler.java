@@ -26,9 +26,50 @@ package com.obliquity.mailtool;
 
 import java.io.IOException;
 
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 
 public interface MessageHandler {
 	public void handleMessage(Message message) throws MessagingException, IOException;
+	
+	/*
+	 * Declares the message data which this handler reads, so that the client can fetch
+	 * exactly that in bulk before calling handleMessage, and nothing more.
+	 * 
+	 * Add FetchProfile.Item.ENVELOPE for the sender, recipients, subject and dates, header
+	 * names for individual headers, FetchProfile.Item.CONTENT_INFO for the MIME structure
+	 * (the IMAP BODYSTRUCTURE), or IMAPFolder.FetchProfileItem.MESSAGE if the handler really
+	 * does need the whole message.  Anything not declared is still loaded on demand.
+	 */
+	public default FetchProfile getFetchProfile() {
+		return MessagePrefetcher.createDefaultProfile();
+	}
+	
+	/*
+	 * Called with the messages which a client has found in a folder, before they are
+	 * prefetched, so that a handler which has already seen some of them, such as one which
+	 * keeps an index, can leave them out.  Returns the messages to pass to handleMessage.
+	 */
+	public default Message[] selectMessages(Folder folder, Message[] messages) throws MessagingException {
+		return messages;
+	}
+	
+	/*
+	 * Called once the client has finished passing messages to this handler, so that it
+	 * can flush anything it has buffered and release its resources.
+	 */
+	public default void close() throws MessagingException, IOException {
+	}
+	
+	/*
+	 * Returns true if handleMessage may be called from several threads at once.  Clients
+	 * which process folders in parallel then share one handler between their threads,
+	 * rather than creating one per thread or taking turns.  Such a handler must cope with
+	 * close() being called more than once.
+	 */
+	public default boolean isThreadSafe() {
+		return false;
+	}
 }
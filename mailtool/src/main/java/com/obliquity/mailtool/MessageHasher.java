@@ -0,0 +1,49 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+/*
+ * A hash function which is fed a message incrementally.  This covers both the
+ * cryptographic digests from java.security.MessageDigest and the much faster 32-bit
+ * checksums from java.util.zip.  The checksums are only good enough for a rough report:
+ * in a few hundred thousand messages, several pairs of different messages will share a
+ * checksum by chance, so they must never be used to decide what to delete.
+ * 
+ * Instances are not thread-safe.  Use MessageDigests.createHasher to obtain one.
+ */
+public interface MessageHasher {
+	public String getAlgorithm();
+	
+	public int getDigestLength();
+	
+	public void reset();
+	
+	public void update(byte[] bytes, int offset, int length);
+	
+	/*
+	 * Returns the hash of everything passed to update since the last reset, and resets.
+	 */
+	public byte[] digest();
+}
@@ -0,0 +1,105 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.util.Arrays;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/*
+ * Loads message attributes in bulk before the messages are processed one at a time.
+ * 
+ * Without this, each call to getFrom(), getSentDate(), getSize() or isSet() on a message
+ * whose data has not yet been loaded can cost a separate round trip to the IMAP server.
+ * The prefetcher issues one FETCH command per batch of messages instead.  The batch size
+ * can be set via the system property mailtool.fetch.batchsize (default 500).
+ */
+public class MessagePrefetcher {
+	public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("mailtool.fetch.batchsize", 500);
+	
+	private final FetchProfile profile;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	public MessagePrefetcher() {
+		this(createDefaultProfile());
+	}
+	
+	public MessagePrefetcher(FetchProfile profile) {
+		this.profile = profile;
+	}
+	
+	/*
+	 * The default profile covers the envelope (sender, recipients, subject, dates and
+	 * Message-ID), the flags and the size of each message.
+	 */
+	public static FetchProfile createDefaultProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.SIZE);
+		
+		return profile;
+	}
+	
+	public FetchProfile getProfile() {
+		return profile;
+	}
+	
+	public void addItem(FetchProfile.Item item) {
+		profile.add(item);
+	}
+	
+	public void addHeader(String headerName) {
+		profile.add(headerName);
+	}
+	
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	public void prefetch(Folder folder, Message[] messages) throws MessagingException {
+		if (messages == null || messages.length == 0)
+			return;
+		
+		if (messages.length <= batchSize) {
+			folder.fetch(messages, profile);
+			return;
+		}
+		
+		for (int start = 0; start < messages.length; start += batchSize) {
+			int end = Math.min(start + batchSize, messages.length);
+			
+			folder.fetch(Arrays.copyOfRange(messages, start, end), profile);
+		}
+	}
+}
@@ -24,20 +24,35 @@
 
 package com.obliquity.mailtool;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 import javax.mail.search.FlagTerm;
 
 public class MigrationClient extends AbstractMailClient {
 	private final FlagTerm NOT_DELETED = new FlagTerm(new Flags(Flags.Flag.DELETED), false);
 	
-	private final DecimalFormat dfmt = new DecimalFormat("0.0");
+	private MigrationJournal journal = null;
+	
+	private int threads = 1;
+	
+	private boolean skipDuplicates = false;
 
 	public MigrationClient(String folderURI) throws URISyntaxException, MessagingException {
 		super(folderURI);
@@ -46,6 +61,9 @@ public class MigrationClient extends AbstractMailClient {
 	public static void main(String[] args) throws URISyntaxException, MessagingException {
 		String fromURI = null;
 		String toURI = null;
+		String journalName = null;
+		int threads = 1;
+		boolean skipDuplicates = false;
 
 		for (int i = 0; i < args.length; i++) {
 			switch (args[i].toLowerCase()) {
@@ -57,6 +75,18 @@ public class MigrationClient extends AbstractMailClient {
 				toURI = args[++i];
 				break;
 				
+			case "-journal":
+				journalName = args[++i];
+				break;
+				
+			case "-threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+				
+			case "-skipduplicates":
+				skipDuplicates = true;
+				break;
+				
 			case "-help":
 				showHelp(null);
 				System.exit(0);
@@ -75,9 +105,21 @@ public class MigrationClient extends AbstractMailClient {
 		MigrationClient migrator = new MigrationClient(fromURI);
 
 		try {
+			if (journalName != null)
+				migrator.setJournal(new MigrationJournal(new File(journalName)));
+			
+			migrator.setThreads(threads);
+			
+			migrator.setSkipDuplicates(skipDuplicates);
+			
 			migrator.migrateTo(toURI);
-		} catch (URISyntaxException | MessagingException e) {
+		} catch (URISyntaxException | MessagingException | IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (migrator.getJournal() != null)
+				migrator.getJournal().close();
+			
+			migrator.releaseMainFolder();
 		}
 	}
 	
@@ -125,7 +167,39 @@ public class MigrationClient extends AbstractMailClient {
 				"",
 				"The program does not check for duplicate emails, so if it is run more than once",
 				"with the same source and destination arguments, you WILL end up with duplicates",
-				"of all of the emails copied from the source.",
+				"of all of the emails copied from the source, unless you use a journal file or",
+				"the -skipduplicates option.",
+				"",
+				"SKIPPING MESSAGES WHICH ARE ALREADY IN THE DESTINATION",
+				"",
+				"<COPY_COMMAND> -from ... -to ... -skipduplicates",
+				"",
+				"indexes the Message-ID of every message in each destination folder before",
+				"copying into it, and skips source messages whose Message-ID is already there.",
+				"Messages without a Message-ID are compared by an MD5 digest of their content.",
+				"This makes it safe to re-run a migration to copy only new messages.",
+				"",
+				"RESUMING AN INTERRUPTED MIGRATION",
+				"",
+				"<COPY_COMMAND> -from ... -to ... -journal migration.journal",
+				"",
+				"records in the named file the highest UID copied from each source folder, and",
+				"which folders have been copied completely.  If the migration is interrupted,",
+				"re-run the same command with the same journal file.  Completed folders will",
+				"be skipped, and each partially-copied folder will resume after the last message",
+				"recorded in the journal.  At most one batch of messages may be copied twice.",
+				"",
+				"If the UIDVALIDITY of a source folder has changed since the journal was written,",
+				"its old UIDs are meaningless, and the folder will be copied again from the start.",
+				"",
+				"COPYING SEVERAL FOLDERS AT ONCE",
+				"",
+				"<COPY_COMMAND> -from ... -to ... -threads 4",
+				"",
+				"creates the whole destination folder tree first, then copies the messages of up",
+				"to 4 folders at the same time, largest folders first.  Each folder copy uses its",
+				"own pair of source and destination connections.  Check how many simultaneous",
+				"connections your servers allow per account before raising this number.",
 				"",
 				"SOURCE CODE",
 				"",
@@ -149,23 +223,62 @@ public class MigrationClient extends AbstractMailClient {
 			System.err.println(line);
 	}
 	
+	public void setJournal(MigrationJournal journal) {
+		this.journal = journal;
+	}
+	
+	public MigrationJournal getJournal() {
+		return journal;
+	}
+	
+	public void setSkipDuplicates(boolean skipDuplicates) {
+		this.skipDuplicates = skipDuplicates;
+	}
+	
+	public boolean isSkipDuplicates() {
+		return skipDuplicates;
+	}
+	
+	public void setThreads(int threads) {
+		this.threads = threads > 0 ? threads : 1;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
 	public void migrateTo(String toURI) throws URISyntaxException, MessagingException {
 		Folder fromFolder = getMainFolder();
 
-		Folder toFolder = connectToFolder(toURI);
+		StoreLease toLease = leaseStore(toURI);
 		
-		System.out.println("STAGE 1: COUNT ALL SOURCE FOLDERS AND MESSAGES");
-		
-		int[] counts = enumerateFoldersAndMessages(fromFolder);
-		
-		System.out.println("\nTOTAL :  " + counts[1] + " messages in " + counts[0] + " folders.\n");
-		
-		System.out.println("STAGE 2 : COPY ALL SOURCE FOLDERS AND MESSAGES");
-		
-		migrateFoldersAndMessages(fromFolder, toFolder);
+		try {
+			Folder toFolder = toLease.getFolder();
+			
+			System.out.println("STAGE 1: COUNT ALL SOURCE FOLDERS AND MESSAGES");
+			
+			List<FolderPlan> plan = new ArrayList<FolderPlan>();
+			
+			int[] counts = enumerateFoldersAndMessages(fromFolder, plan);
+			
+			System.out.println("\nTOTAL :  " + counts[1] + " messages in " + counts[0] + " folders.\n");
+			
+			System.out.println("STAGE 2 : COPY ALL SOURCE FOLDERS AND MESSAGES");
+			
+			if (threads > 1)
+				migrateInParallel(plan, fromFolder, toFolder, toURI);
+			else
+				migrateFoldersAndMessages(fromFolder, toFolder);
+		} finally {
+			toLease.close();
+		}
 	}
 
-	private int[] enumerateFoldersAndMessages(Folder folder) throws MessagingException {
+	/*
+	 * Counts the folders and messages under the given folder.  Each folder visited is also
+	 * added to the plan, parents before their subfolders.
+	 */
+	private int[] enumerateFoldersAndMessages(Folder folder, List<FolderPlan> plan) throws MessagingException {
 		int folderCount = 0;
 		int messageCount = 0;
 		
@@ -173,22 +286,27 @@ public class MigrationClient extends AbstractMailClient {
 		
 		boolean holdsMessages = (type & Folder.HOLDS_MESSAGES) != 0;
 		boolean holdsFolders = (type & Folder.HOLDS_FOLDERS) != 0;
+		
+		int folderMessageCount = 0;
 				
 		if (holdsMessages) {
 			folder.open(Folder.READ_ONLY);
 			Message[] messages = folder.search(NOT_DELETED);
+			folderMessageCount = messages.length;
 			messageCount += messages.length;
 			folder.close(false);
 			System.out.println("\t" + folder.getFullName() + " : " + messages.length + " messages");
 		}
 		
+		plan.add(new FolderPlan(folder, type, folderMessageCount));
+		
 		if (holdsFolders) {
 			Folder[] subfolders = folder.list();
 			
 			for (Folder subfolder : subfolders) {
 				folderCount++;
 				
-				int[] counters = enumerateFoldersAndMessages(subfolder);
+				int[] counters = enumerateFoldersAndMessages(subfolder, plan);
 				
 				folderCount += counters[0];
 				messageCount += counters[1];
@@ -223,6 +341,122 @@ public class MigrationClient extends AbstractMailClient {
 		}
 	}
 	
+	/*
+	 * Creates the whole destination folder tree first, then copies the messages in each folder
+	 * using a pool of workers, each with its own source and destination connections.  The
+	 * largest folders are started first, so that one big folder is not left running alone at
+	 * the end.
+	 */
+	private void migrateInParallel(List<FolderPlan> plan, Folder fromFolder, Folder toFolder, String toURI)
+			throws URISyntaxException, MessagingException {
+		Map<String, Folder> destinations = new HashMap<String, Folder>();
+		
+		destinations.put(fromFolder.getFullName(), toFolder);
+		
+		if (!toFolder.exists())
+			toFolder.create(fromFolder.getType());
+		
+		List<FolderPlan> work = new ArrayList<FolderPlan>();
+		
+		for (FolderPlan entry : plan) {
+			Folder destination = destinations.get(entry.sourceName);
+			
+			if (destination == null) {
+				Folder parent = destinations.get(entry.source.getParent().getFullName());
+				
+				destination = makeDestinationSubfolder(entry.source, parent);
+				
+				if (!destination.exists())
+					destination.create(entry.type);
+				
+				destinations.put(entry.sourceName, destination);
+			}
+			
+			entry.destinationName = destination.getFullName();
+			
+			if ((entry.type & Folder.HOLDS_MESSAGES) != 0)
+				work.add(entry);
+		}
+		
+		work.sort((a, b) -> Integer.compare(b.messageCount, a.messageCount));
+		
+		int workers = Math.min(threads, getMaximumWorkers(toURI));
+		
+		System.out.println("\tCopying " + work.size() + " folders using " + workers + " workers");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for (FolderPlan entry : work) {
+			futures.add(executor.submit(() -> {
+				try (StoreLease fromLease = leaseStore(getMainFolderURI()); StoreLease toLease = leaseStore(toURI)) {
+					copyMessages(fromLease.getStore().getFolder(entry.sourceName), toLease.getStore().getFolder(entry.destinationName));
+				}
+				
+				return null;
+			}));
+		}
+		
+		int failures = 0;
+		
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				failures++;
+				System.err.println("ERROR whilst copying " + work.get(i).sourceName + " : " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		
+		executor.shutdown();
+		
+		if (failures > 0)
+			throw new MessagingException(failures + " folders could not be copied");
+	}
+	
+	/*
+	 * Each worker holds a source and a destination connection, on top of the two held by the
+	 * main thread, and the connection pool caps the number of connections to each host.  If
+	 * the source and destination are the same server, each worker counts twice against it.
+	 * A worker which could never get its connections would wait forever, so a cap too small
+	 * for even one worker is refused.
+	 */
+	private int getMaximumWorkers(String toURI) throws URISyntaxException, MessagingException {
+		URI from = new URI(getMainFolderURI());
+		URI to = new URI(toURI);
+		
+		boolean sameHost = from.getHost().equalsIgnoreCase(to.getHost()) && from.getPort() == to.getPort();
+		
+		int maxPerHost = getConnectionPool().getMaxPerHost();
+		
+		int workers = sameHost ? (maxPerHost - 2) / 2 : maxPerHost - 1;
+		
+		if (workers < 1)
+			throw new MessagingException("mailtool.pool.maxperhost must be at least " + (sameHost ? 4 : 2) +
+					" to copy folders in parallel");
+		
+		return workers;
+	}
+	
+	private static class FolderPlan {
+		final Folder source;
+		final String sourceName;
+		final int type;
+		final int messageCount;
+		String destinationName = null;
+		
+		FolderPlan(Folder source, int type, int messageCount) {
+			this.source = source;
+			this.sourceName = source.getFullName();
+			this.type = type;
+			this.messageCount = messageCount;
+		}
+	}
+	
 	private Folder makeDestinationSubfolder(Folder fromSubfolder, Folder toFolder) throws MessagingException {
 		Store store = toFolder.getStore();
 		
@@ -235,26 +469,63 @@ public class MigrationClient extends AbstractMailClient {
 	}
 	
 	private void copyMessages(Folder fromFolder, Folder toFolder) throws MessagingException {
-		fromFolder.open(Folder.READ_ONLY);
-		toFolder.open(Folder.READ_WRITE);
-		
-		Message[] messages = fromFolder.search(NOT_DELETED);
-		
-		System.out.print("\tCopying " + messages.length + " messages from " + fromFolder.getFullName() + " to " + toFolder.getFullName());
-		System.out.flush();
-
-		long startTime = System.currentTimeMillis();
+		String folderName = fromFolder.getFullName();
 		
-		fromFolder.copyMessages(messages, toFolder);
+		boolean useJournal = journal != null && fromFolder instanceof UIDFolder;
 		
-		long endTime = System.currentTimeMillis();
+		long uidValidity = useJournal ? ((UIDFolder)fromFolder).getUIDValidity() : 0;
 		
-		double seconds = (double)(endTime - startTime)/1000.0;
-		
-		System.out.println(" [" + dfmt.format(seconds) + " seconds]");
-		System.out.flush();
+		if (useJournal && journal.isComplete(folderName, uidValidity)) {
+			System.out.println("\tSkipping " + folderName + " [already copied]");
+			return;
+		}
 		
-		fromFolder.close(false);
-		toFolder.close(false);
+		// A folder left open by a failure would tie up the connection when it goes back
+		// to the pool.
+		try {
+			fromFolder.open(Folder.READ_ONLY);
+			toFolder.open(Folder.READ_WRITE);
+			
+			PagedMessageSearch search = new PagedMessageSearch(fromFolder, NOT_DELETED);
+			
+			long lastUID = useJournal ? journal.getLastCopiedUID(folderName, uidValidity) : 0;
+			
+			if (lastUID > 0)
+				search.setStartUID(lastUID + 1);
+			
+			System.out.println("\t" + (lastUID > 0 ? "Resuming copy of" : "Copying") + " messages from " + folderName + " to " + toFolder.getFullName());
+			System.out.flush();
+
+			MessageCopyPipeline pipeline = new MessageCopyPipeline(fromFolder, toFolder);
+			
+			if (skipDuplicates) {
+				try {
+					MessageDedupIndex index = MessageDedupIndex.build(toFolder);
+					
+					System.out.println("\t\t" + toFolder.getFullName() + " : indexed " + index.getMessageIDCount() +
+							" Message-IDs and " + index.getContentDigestCount() + " content digests");
+					
+					pipeline.setDuplicateIndex(index);
+				} catch (IOException e) {
+					throw new MessagingException("Failed to index " + toFolder.getFullName(), e);
+				}
+			}
+			
+			pipeline.setProgressLabel(folderName + " : ");
+			
+			if (useJournal)
+				pipeline.setChunkListener(uid -> journal.recordCopied(folderName, uidValidity, uid));
+			
+			MessageCopyPipeline.CopyStatistics statistics = pipeline.copy(search);
+			
+			if (useJournal)
+				journal.recordComplete(folderName, uidValidity);
+			
+			System.out.println("\t\t" + folderName + " : done : " + statistics);
+			System.out.flush();
+		} finally {
+			closeQuietly(fromFolder);
+			closeQuietly(toFolder);
+		}
 	}
 }
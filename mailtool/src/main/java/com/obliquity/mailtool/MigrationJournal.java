@@ -0,0 +1,180 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+
+/*
+ * An append-only record of how far a migration has progressed in each source folder.
+ * 
+ * Each line of the journal file is one of
+ * 
+ *   COPIED <TAB> folder <TAB> uidvalidity <TAB> uid
+ *   COMPLETE <TAB> folder <TAB> uidvalidity
+ * 
+ * where uid is the highest UID which has been copied so far.  When the journal is re-opened,
+ * the latest record for each folder wins.  Records for a different UIDVALIDITY are ignored,
+ * since the UIDs they refer to are no longer meaningful.  A partial last line, left by a
+ * crash part-way through writing it, is cut off when the journal is opened, so that the
+ * next record starts on a line of its own.
+ * 
+ * Each record is flushed as it is written, and a failure to write it is reported as an
+ * exception, since carrying on would copy messages which the journal could not account for.
+ */
+public class MigrationJournal {
+	private static final String COPIED = "COPIED";
+	private static final String COMPLETE = "COMPLETE";
+	
+	private final Map<String, Checkpoint> checkpoints = new HashMap<String, Checkpoint>();
+	private final PrintWriter writer;
+	
+	public MigrationJournal(File file) throws IOException {
+		if (file.exists()) {
+			truncatePartialLine(file);
+			load(file);
+		}
+		
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+	
+	private static void truncatePartialLine(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		
+		try {
+			long length = raf.length();
+			
+			while (length > 0) {
+				raf.seek(length - 1);
+				
+				if (raf.read() == '\n')
+					break;
+				
+				length--;
+			}
+			
+			if (length < raf.length()) {
+				System.err.println("Discarding a partial record at the end of " + file);
+				raf.setLength(length);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private void load(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8));
+		
+		String line;
+		
+		while ((line = reader.readLine()) != null) {
+			String[] words = line.split("\t");
+			
+			try {
+				if (words.length == 4 && words[0].equals(COPIED))
+					checkpoints.put(words[1], new Checkpoint(Long.parseLong(words[2]), Long.parseLong(words[3]), false));
+				else if (words.length == 3 && words[0].equals(COMPLETE)) {
+					Checkpoint previous = checkpoints.get(words[1]);
+					long uidValidity = Long.parseLong(words[2]);
+					long lastUID = previous != null && previous.uidValidity == uidValidity ? previous.lastUID : 0;
+					
+					checkpoints.put(words[1], new Checkpoint(uidValidity, lastUID, true));
+				}
+			} catch (NumberFormatException e) {
+				// A damaged line; skip it.
+			}
+		}
+		
+		reader.close();
+	}
+	
+	/*
+	 * Returns the highest UID already copied from the folder, or zero if nothing has been
+	 * copied with this UIDVALIDITY.
+	 */
+	public synchronized long getLastCopiedUID(String folderName, long uidValidity) {
+		Checkpoint checkpoint = checkpoints.get(folderName);
+		
+		return checkpoint != null && checkpoint.uidValidity == uidValidity ? checkpoint.lastUID : 0;
+	}
+	
+	public synchronized boolean isComplete(String folderName, long uidValidity) {
+		Checkpoint checkpoint = checkpoints.get(folderName);
+		
+		return checkpoint != null && checkpoint.uidValidity == uidValidity && checkpoint.complete;
+	}
+	
+	public synchronized void recordCopied(String folderName, long uidValidity, long lastUID) throws MessagingException {
+		checkpoints.put(folderName, new Checkpoint(uidValidity, lastUID, false));
+		
+		write(COPIED + "\t" + folderName + "\t" + uidValidity + "\t" + lastUID);
+	}
+	
+	public synchronized void recordComplete(String folderName, long uidValidity) throws MessagingException {
+		long lastUID = getLastCopiedUID(folderName, uidValidity);
+		
+		checkpoints.put(folderName, new Checkpoint(uidValidity, lastUID, true));
+		
+		write(COMPLETE + "\t" + folderName + "\t" + uidValidity);
+	}
+	
+	/*
+	 * A PrintWriter never throws, so the error flag is checked after each record.
+	 */
+	private void write(String record) throws MessagingException {
+		writer.println(record);
+		writer.flush();
+		
+		if (writer.checkError())
+			throw new MessagingException("Failed to write to the migration journal");
+	}
+	
+	public synchronized void close() {
+		writer.close();
+	}
+	
+	private static class Checkpoint {
+		final long uidValidity;
+		final long lastUID;
+		final boolean complete;
+		
+		Checkpoint(long uidValidity, long lastUID, boolean complete) {
+			this.uidValidity = uidValidity;
+			this.lastUID = lastUID;
+			this.complete = complete;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+
+/*
+ * Remembers the HIGHESTMODSEQ of each folder from one run to the next, so that a server
+ * which supports CONDSTORE (RFC 7162) can be asked for only the messages which have been
+ * added or have had their flags changed since then.
+ * 
+ * Each line of the state file is
+ * 
+ *   MODSEQ <TAB> folder <TAB> uidvalidity <TAB> highestmodseq
+ * 
+ * and the latest line for each folder wins.  The file is rewritten with one line per
+ * folder each time it is opened, so it does not grow without limit.
+ * 
+ * A folder is opened with open(), which returns the changes, and once they have been
+ * processed commit() records the HIGHESTMODSEQ as it was when the folder was opened.  If
+ * the run fails before then, the same changes are returned again next time.
+ * 
+ * A folder which is kept open instead reports each message as it is passed on with
+ * dispatched(), and again once it has been dealt with by handled().  Whenever none of its
+ * messages are still outstanding, the highest MODSEQ of the messages actually handled is
+ * recorded, but never one at or beyond a message which failed.
+ */
+public class ModSeqState {
+	private static final String MODSEQ = "MODSEQ";
+	
+	private final Map<String, Checkpoint> checkpoints = new HashMap<String, Checkpoint>();
+	private final Map<String, Checkpoint> pending = new HashMap<String, Checkpoint>();
+	private final Map<String, Progress> progress = new HashMap<String, Progress>();
+	private final PrintWriter writer;
+	
+	public ModSeqState(File file) throws IOException {
+		if (file.exists()) {
+			load(file);
+			compact(file);
+		}
+		
+		writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+	
+	private void load(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8));
+		
+		String line;
+		
+		while ((line = reader.readLine()) != null) {
+			String[] words = line.split("\t");
+			
+			try {
+				if (words.length == 4 && words[0].equals(MODSEQ))
+					checkpoints.put(words[1], new Checkpoint(Long.parseLong(words[2]), Long.parseLong(words[3])));
+			} catch (NumberFormatException e) {
+				// A damaged line; skip it.
+			}
+		}
+		
+		reader.close();
+	}
+	
+	private void compact(File file) throws IOException {
+		File temporary = new File(file.getPath() + ".tmp");
+		
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8));
+		
+		for (Map.Entry<String, Checkpoint> entry : checkpoints.entrySet())
+			pw.println(formatLine(entry.getKey(), entry.getValue()));
+		
+		pw.close();
+		
+		if (pw.checkError())
+			throw new IOException("Failed to write " + temporary);
+		
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static String formatLine(String folderKey, Checkpoint checkpoint) {
+		return MODSEQ + "\t" + folderKey + "\t" + checkpoint.uidValidity + "\t" + checkpoint.highestModSeq;
+	}
+	
+	public static boolean supportsCondstore(Folder folder) throws MessagingException {
+		return folder instanceof IMAPFolder && ((IMAPStore)folder.getStore()).hasCapability("CONDSTORE");
+	}
+	
+	/*
+	 * Opens the folder and returns what has changed in it since the last commit, or null
+	 * if every message must be treated as new: because the server lacks CONDSTORE, the
+	 * folder has not been seen before, or its UIDVALIDITY has changed.
+	 * 
+	 * With QRESYNC the changes arrive in the response to SELECT itself, including the UIDs
+	 * of messages expunged in the meantime.  With CONDSTORE alone they are found by a
+	 * UID FETCH with CHANGEDSINCE, and expunged messages cannot be reported.
+	 */
+	public Changes open(String folderKey, Folder folder, int mode) throws MessagingException {
+		if (!supportsCondstore(folder)) {
+			folder.open(mode);
+			return null;
+		}
+		
+		IMAPFolder imapFolder = (IMAPFolder)folder;
+		
+		long uidValidity = imapFolder.getUIDValidity();
+		
+		Checkpoint checkpoint = getCheckpoint(folderKey, uidValidity);
+		
+		Changes changes = null;
+		
+		if (checkpoint == null)
+			imapFolder.open(mode, ResyncData.CONDSTORE);
+		else if (((IMAPStore)folder.getStore()).hasCapability("QRESYNC")) {
+			List<MailEvent> events = imapFolder.open(mode, new ResyncData(uidValidity, checkpoint.highestModSeq));
+			
+			changes = new Changes();
+			
+			for (MailEvent event : events) {
+				if (event instanceof MessageChangedEvent)
+					changes.messages.add(((MessageChangedEvent)event).getMessage());
+				else if (event instanceof MessageVanishedEvent)
+					changes.vanished += ((MessageVanishedEvent)event).getUIDs().length;
+			}
+		} else {
+			imapFolder.open(mode, ResyncData.CONDSTORE);
+			
+			changes = new Changes();
+			
+			for (Message message : imapFolder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, checkpoint.highestModSeq))
+				changes.messages.add(message);
+		}
+		
+		synchronized (this) {
+			pending.put(folderKey, new Checkpoint(uidValidity, imapFolder.getHighestModSeq()));
+		}
+		
+		return changes;
+	}
+	
+	private synchronized Checkpoint getCheckpoint(String folderKey, long uidValidity) {
+		Checkpoint checkpoint = checkpoints.get(folderKey);
+		
+		return checkpoint != null && checkpoint.uidValidity == uidValidity ? checkpoint : null;
+	}
+	
+	/*
+	 * Records the HIGHESTMODSEQ which the folder had when it was opened.
+	 */
+	public synchronized void commit(String folderKey) {
+		Checkpoint checkpoint = pending.remove(folderKey);
+		
+		if (checkpoint != null)
+			record(folderKey, checkpoint);
+	}
+	
+	/*
+	 * Counts messages of a folder which is being kept open, such as one being watched by
+	 * FolderMonitor, as passed on for handling.
+	 */
+	public synchronized void dispatched(String folderKey, int count) {
+		Progress folderProgress = getProgress(folderKey);
+		
+		if (folderProgress != null)
+			folderProgress.outstanding += count;
+	}
+	
+	/*
+	 * Records that the messages, which were passed to dispatched() earlier, have been dealt
+	 * with, and saves the folder's progress if nothing else is outstanding.
+	 */
+	public void handled(String folderKey, Message[] handled, Message[] failed) {
+		// Find the MODSEQs first, since this may mean a round trip to the server.
+		long highestHandled = getHighestModSeq(handled);
+		long lowestFailed = getLowestModSeq(failed);
+		
+		synchronized (this) {
+			Progress folderProgress = getProgress(folderKey);
+			
+			if (folderProgress == null)
+				return;
+			
+			folderProgress.highestHandled = Math.max(folderProgress.highestHandled, highestHandled);
+			folderProgress.lowestFailed = Math.min(folderProgress.lowestFailed, lowestFailed);
+			folderProgress.outstanding -= handled.length + failed.length;
+			
+			checkpoint(folderKey);
+		}
+	}
+	
+	/*
+	 * Saves the progress of a folder which is being kept open, provided that none of its
+	 * messages are outstanding.  Before any messages have been handled, this is the
+	 * HIGHESTMODSEQ which the folder had when it was opened.  Nothing is written if it has
+	 * not moved on.
+	 */
+	public synchronized void checkpoint(String folderKey) {
+		Progress folderProgress = getProgress(folderKey);
+		
+		if (folderProgress == null || folderProgress.outstanding > 0)
+			return;
+		
+		long highestModSeq = Math.max(folderProgress.opened.highestModSeq, folderProgress.highestHandled);
+		
+		// Stop short of a failed message, so that it is returned again by the next run.
+		if (folderProgress.lowestFailed <= highestModSeq)
+			highestModSeq = folderProgress.lowestFailed - 1;
+		
+		Checkpoint previous = checkpoints.get(folderKey);
+		
+		if (previous != null && previous.uidValidity == folderProgress.opened.uidValidity &&
+				previous.highestModSeq >= highestModSeq)
+			return;
+		
+		record(folderKey, new Checkpoint(folderProgress.opened.uidValidity, highestModSeq));
+	}
+	
+	private Progress getProgress(String folderKey) {
+		Checkpoint opened = pending.remove(folderKey);
+		
+		if (opened != null)
+			progress.put(folderKey, new Progress(opened));
+		
+		return progress.get(folderKey);
+	}
+	
+	private static long getHighestModSeq(Message[] messages) {
+		long highest = 0;
+		
+		for (Message message : messages)
+			highest = Math.max(highest, getModSeq(message));
+		
+		return highest;
+	}
+	
+	private static long getLowestModSeq(Message[] messages) {
+		long lowest = Long.MAX_VALUE;
+		
+		for (Message message : messages) {
+			long modSeq = getModSeq(message);
+			
+			if (modSeq > 0)
+				lowest = Math.min(lowest, modSeq);
+		}
+		
+		return lowest;
+	}
+	
+	/*
+	 * Returns the MODSEQ of the message, or 0 if it is unknown, for example because the
+	 * message has since been expunged.
+	 */
+	private static long getModSeq(Message message) {
+		if (!(message instanceof IMAPMessage))
+			return 0;
+		
+		try {
+			return Math.max(((IMAPMessage)message).getModSeq(), 0);
+		} catch (MessagingException e) {
+			return 0;
+		}
+	}
+	
+	private void record(String folderKey, Checkpoint checkpoint) {
+		checkpoints.put(folderKey, checkpoint);
+		
+		writer.println(formatLine(folderKey, checkpoint));
+		writer.flush();
+	}
+	
+	public synchronized void close() {
+		writer.close();
+	}
+	
+	/*
+	 * The messages which have been added or changed since the last commit, and the number
+	 * which have been expunged if the server could tell us.
+	 */
+	public static class Changes {
+		private final List<Message> messages = new ArrayList<Message>();
+		private int vanished = 0;
+		
+		public Message[] getMessages() {
+			return messages.toArray(new Message[0]);
+		}
+		
+		public int getVanishedCount() {
+			return vanished;
+		}
+	}
+	
+	/*
+	 * How far a folder which is being kept open has got since it was opened.
+	 */
+	private static class Progress {
+		final Checkpoint opened;
+		long highestHandled = 0;
+		long lowestFailed = Long.MAX_VALUE;
+		int outstanding = 0;
+		
+		Progress(Checkpoint opened) {
+			this.opened = opened;
+		}
+	}
+	
+	private static class Checkpoint {
+		final long uidValidity;
+		final long highestModSeq;
+		
+		Checkpoint(long uidValidity, long highestModSeq) {
+			this.uidValidity = uidValidity;
+			this.highestModSeq = highestModSeq;
+		}
+	}
+}
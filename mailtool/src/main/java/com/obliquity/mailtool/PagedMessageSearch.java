@@ -0,0 +1,163 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.search.SearchTerm;
+
+/*
+ * Searches an open folder one window of messages at a time, instead of materialising
+ * every match in a single Message[] as Folder.search does.
+ * 
+ * Each call to nextPage() runs the search over the next window of messages and returns
+ * the matches, so the caller can start processing before the rest of the folder has been
+ * searched.  The window size can be set via the system property mailtool.search.pagesize
+ * (default 1000).
+ * 
+ * This bounds the size of each search and its results, but not the memory used overall:
+ * an IMAPFolder keeps every Message object it has handed out until the folder is closed,
+ * so memory still grows with the number of messages visited.
+ * 
+ * Messages expunged by another client while the search is in progress do not cause any
+ * messages to be skipped, because each window starts after the last surviving message of
+ * the previous window, wherever that message now is.  If the whole window has been
+ * expunged, a UIDFolder resumes after the UID of the last message in the window.
+ */
+public class PagedMessageSearch {
+	public static final int DEFAULT_PAGE_SIZE = Integer.getInteger("mailtool.search.pagesize", 1000);
+	
+	private final Folder folder;
+	private final SearchTerm term;
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private MessagePrefetcher prefetcher = null;
+	
+	private int nextMessageNumber = 1;
+	private Message[] lastWindow = null;
+	private long lastWindowUID = -1;
+	
+	/*
+	 * The folder must already be open.  If the term is null, every message matches.
+	 */
+	public PagedMessageSearch(Folder folder, SearchTerm term) {
+		this.folder = folder;
+		this.term = term;
+	}
+	
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+	}
+	
+	public int getPageSize() {
+		return pageSize;
+	}
+	
+	/*
+	 * If a prefetcher is set, each page is prefetched before it is returned.
+	 */
+	public void setPrefetcher(MessagePrefetcher prefetcher) {
+		this.prefetcher = prefetcher;
+	}
+	
+	/*
+	 * Skips all messages whose UID is lower than the given UID.  This must be called
+	 * before the first page is requested, and only works on a UIDFolder.
+	 */
+	public void setStartUID(long uid) throws MessagingException {
+		nextMessageNumber = getFirstMessageNumber(uid);
+	}
+	
+	/*
+	 * Returns the number of the first message whose UID is at least the given UID, or one
+	 * more than the message count if there is none.
+	 */
+	private int getFirstMessageNumber(long uid) throws MessagingException {
+		UIDFolder uidFolder = (UIDFolder)folder;
+		
+		// The range uid:* always includes the last message, even if its UID is lower.
+		Message[] messages = uidFolder.getMessagesByUID(uid, UIDFolder.LASTUID);
+		
+		for (Message message : messages)
+			if (uidFolder.getUID(message) >= uid)
+				return message.getMessageNumber();
+		
+		return folder.getMessageCount() + 1;
+	}
+	
+	/*
+	 * Returns the number of the message after the last one in the previous window which
+	 * has not been expunged.  Messages after that one in the window have all gone, so the
+	 * message which now follows it is the first one not yet searched.
+	 */
+	private int getResumeMessageNumber() throws MessagingException {
+		for (int i = lastWindow.length - 1; i >= 0; i--)
+			if (!lastWindow[i].isExpunged())
+				return lastWindow[i].getMessageNumber() + 1;
+		
+		if (lastWindowUID >= 0)
+			return getFirstMessageNumber(lastWindowUID + 1);
+		
+		return nextMessageNumber;
+	}
+	
+	/*
+	 * Returns the next non-empty page of matching messages, or null when the end of the
+	 * folder has been reached.
+	 */
+	public Message[] nextPage() throws MessagingException {
+		while (true) {
+			if (lastWindow != null)
+				nextMessageNumber = getResumeMessageNumber();
+			
+			int messageCount = folder.getMessageCount();
+			
+			if (nextMessageNumber > messageCount)
+				return null;
+			
+			int end = Math.min(nextMessageNumber + pageSize - 1, messageCount);
+			
+			Message[] window = folder.getMessages(nextMessageNumber, end);
+			
+			lastWindow = window;
+			nextMessageNumber = end + 1;
+			
+			// One UID per window, in case every message in it is expunged before the next.
+			if (folder instanceof UIDFolder)
+				lastWindowUID = ((UIDFolder)folder).getUID(window[window.length - 1]);
+			
+			Message[] page = term == null ? window : AttachmentTerm.search(folder, term, window);
+			
+			if (page.length == 0)
+				continue;
+			
+			if (prefetcher != null)
+				prefetcher.prefetch(folder, page);
+			
+			return page;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+/*
+ * Hashes many messages using separate fetcher and hasher threads, so that downloading and
+ * hashing overlap instead of taking turns.
+ * 
+ * Each fetcher streams its share of the messages from its own connection in blocks of
+ * 64 KB.  The blocks of each message go through a small bounded queue to a task on the
+ * hasher pool, so no message is ever held in memory in full.  The digests are returned in
+ * the same order as the messages were given, whichever threads computed them.
+ */
+public class ParallelMessageHasher {
+	private static final int BLOCK_SIZE = 65536;
+	private static final int BLOCKS_PER_MESSAGE = 16;
+	
+	private static final byte[] END_OF_MESSAGE = new byte[0];
+	private static final byte[] ABORTED = new byte[0];
+	
+	private final String algorithm;
+	private final int hashers;
+	
+	private final ThreadLocal<MessageHasher> threadHasher;
+	
+	private String[] normalizedHeaders = null;
+	
+	public ParallelMessageHasher(String algorithm, int hashers) throws NoSuchAlgorithmException {
+		// Fail now, rather than in each hasher thread, if the algorithm is unknown.
+		MessageDigests.createHasher(algorithm);
+		
+		this.algorithm = algorithm;
+		this.hashers = hashers > 0 ? hashers : 1;
+		
+		threadHasher = ThreadLocal.withInitial(() -> {
+			try {
+				return MessageDigests.createHasher(this.algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+	
+	/*
+	 * Hashes the canonical form of each message written by MessageDigests.writeNormalized
+	 * with these headers, rather than the raw message.
+	 */
+	public void setNormalizedHeaders(String[] headerNames) {
+		this.normalizedHeaders = headerNames;
+	}
+	
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/*
+	 * Returns the digest of each message, in the same order.  The messages belong to the
+	 * given open folder, which is used by the first fetcher.  Each of the extra folders must
+	 * be the same mailbox opened on another connection, and adds one more fetcher.  Extra
+	 * fetchers find their messages by UID.  The digest of a message which another client
+	 * has expunged in the meantime is null.
+	 */
+	public byte[][] hash(Folder folder, Message[] messages, List<Folder> extraFolders) throws MessagingException, IOException {
+		int fetchers = 1 + extraFolders.size();
+		
+		byte[][] digests = new byte[messages.length][];
+		
+		ExecutorService hashPool = Executors.newFixedThreadPool(hashers);
+		ExecutorService fetchPool = Executors.newFixedThreadPool(fetchers);
+		
+		List<Future<?>> hashFutures = Collections.synchronizedList(new ArrayList<Future<?>>());
+		List<Future<?>> fetchFutures = new ArrayList<Future<?>>();
+		
+		try {
+			for (int k = 0; k < fetchers; k++) {
+				final int fetcher = k;
+				final Folder fetcherFolder = k == 0 ? folder : extraFolders.get(k - 1);
+				
+				fetchFutures.add(fetchPool.submit(() -> {
+					fetch(fetcher, fetchers, folder, fetcherFolder, messages, digests, hashPool, hashFutures);
+					return null;
+				}));
+			}
+			
+			for (Future<?> future : fetchFutures)
+				await(future);
+			
+			synchronized (hashFutures) {
+				for (Future<?> future : hashFutures)
+					await(future);
+			}
+		} finally {
+			fetchPool.shutdownNow();
+			hashPool.shutdownNow();
+		}
+		
+		return digests;
+	}
+	
+	private void await(Future<?> future) throws MessagingException, IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted whilst hashing messages");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			
+			if (cause instanceof MessagingException)
+				throw (MessagingException)cause;
+			else if (cause instanceof IOException)
+				throw (IOException)cause;
+			else
+				throw new MessagingException("Failed to hash messages", (Exception)cause);
+		}
+	}
+	
+	/*
+	 * Fetcher k of n streams every n-th message, starting from the k-th.
+	 */
+	private void fetch(int k, int n, Folder mainFolder, Folder folder, Message[] messages, byte[][] digests,
+			ExecutorService hashPool, List<Future<?>> hashFutures) throws MessagingException, IOException {
+		int shareSize = (messages.length - k + n - 1) / n;
+		
+		Message[] share = new Message[shareSize];
+		
+		for (int j = 0; j < shareSize; j++)
+			share[j] = messages[k + j * n];
+		
+		if (folder != mainFolder) {
+			long[] uids = new long[shareSize];
+			
+			for (int j = 0; j < shareSize; j++)
+				uids[j] = ((UIDFolder)mainFolder).getUID(share[j]);
+			
+			share = ((UIDFolder)folder).getMessagesByUID(uids);
+		}
+		
+		for (int j = 0; j < shareSize; j++) {
+			if (share[j] == null)
+				continue;
+			
+			HashJob job = new HashJob(k + j * n, digests);
+			
+			hashFutures.add(hashPool.submit(job));
+			
+			BlockOutputStream os = new BlockOutputStream(job.blocks);
+			
+			try {
+				if (normalizedHeaders != null)
+					MessageDigests.writeNormalized(share[j], normalizedHeaders, os);
+				else
+					share[j].writeTo(os);
+				
+				os.close();
+			} catch (MessagingException | IOException | RuntimeException e) {
+				job.abort();
+				throw e;
+			}
+		}
+	}
+	
+	private class HashJob implements Callable<Void> {
+		final BlockingQueue<byte[]> blocks = new ArrayBlockingQueue<byte[]>(BLOCKS_PER_MESSAGE);
+		final int index;
+		final byte[][] digests;
+		
+		HashJob(int index, byte[][] digests) {
+			this.index = index;
+			this.digests = digests;
+		}
+		
+		public Void call() throws InterruptedException {
+			MessageHasher hasher = threadHasher.get();
+			
+			hasher.reset();
+			
+			while (true) {
+				byte[] block = blocks.take();
+				
+				if (block == ABORTED)
+					return null;
+				
+				if (block == END_OF_MESSAGE)
+					break;
+				
+				hasher.update(block, 0, block.length);
+			}
+			
+			digests[index] = hasher.digest();
+			
+			return null;
+		}
+		
+		void abort() {
+			// The queue may be full, but the hasher is still draining it.
+			try {
+				blocks.put(ABORTED);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/*
+	 * Cuts the message into fixed-size blocks and hands each one to the hasher.
+	 */
+	private static class BlockOutputStream extends OutputStream {
+		private final BlockingQueue<byte[]> blocks;
+		private byte[] buffer = new byte[BLOCK_SIZE];
+		private int count = 0;
+		
+		BlockOutputStream(BlockingQueue<byte[]> blocks) {
+			this.blocks = blocks;
+		}
+		
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				sendBuffer();
+			
+			buffer[count++] = (byte)b;
+		}
+		
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (count == buffer.length)
+					sendBuffer();
+				
+				int n = Math.min(length, buffer.length - count);
+				
+				System.arraycopy(bytes, offset, buffer, count, n);
+				
+				count += n;
+				offset += n;
+				length -= n;
+			}
+		}
+		
+		public void close() throws IOException {
+			if (count > 0) {
+				byte[] last = new byte[count];
+				System.arraycopy(buffer, 0, last, 0, count);
+				put(last);
+			}
+			
+			put(END_OF_MESSAGE);
+		}
+		
+		private void sendBuffer() throws IOException {
+			put(buffer);
+			buffer = new byte[BLOCK_SIZE];
+			count = 0;
+		}
+		
+		private void put(byte[] block) throws IOException {
+			try {
+				blocks.put(block);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted whilst passing a message to the hasher");
+			}
+		}
+	}
+}
@@ -24,16 +24,23 @@
 
 package com.obliquity.mailtool;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
@@ -55,6 +62,9 @@ import javax.mail.search.SentDateTerm;
 import javax.mail.search.SubjectTerm;
 
 import com.obliquity.mailtool.messagehandler.SimpleMessageHandler;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.SortTerm;
 
 import javax.mail.search.SizeTerm;
 
@@ -64,14 +74,19 @@ public class SearchClient extends AbstractMailClient {
 	
 	private final MessageDateComparator comparator = new MessageDateComparator();
 	
+	private MessagePrefetcher prefetcher = createDisplayPrefetcher();
+	
 	private boolean recursive = false;
 	private boolean purge = false;
 	private boolean quiet = false;
 	private boolean sort = false;
+	private int threads = 1;
 	private Folder copyToFolder = null;
 
 	private MessageHandler messageHandler = null;
 	
+	private ModSeqState syncState = null;
+	
 	public static void main(String[] args) {
 		String folderURI = null;
 		String folderList = null;
@@ -93,6 +108,8 @@ public class SearchClient extends AbstractMailClient {
 		boolean sort = false;
 		String copyToFolderName = null;
 		String handlerName = null;
+		int threads = 1;
+		String syncStateFile = null;
 		
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equalsIgnoreCase("-uri"))
@@ -159,6 +176,10 @@ public class SearchClient extends AbstractMailClient {
 				copyToFolderName = args[++i];
 			else if (args[i].equalsIgnoreCase("-handler"))
 				handlerName = args[++i];
+			else if (args[i].equalsIgnoreCase("-threads"))
+				threads = Integer.parseInt(args[++i]);
+			else if (args[i].equalsIgnoreCase("-syncstate"))
+				syncStateFile = args[++i];
 			else if (args[i].equalsIgnoreCase("-help")) {
 				printUsage(System.err, null);
 				System.exit(0);
@@ -224,13 +245,8 @@ public class SearchClient extends AbstractMailClient {
 		
 		if (handlerName != null) {
 			try {
-				Class<?> handlerClass = Class.forName(handlerName);
-
-				Object o = handlerClass.getDeclaredConstructor().newInstance();
-
-				if (o instanceof MessageHandler)
-					handler = (MessageHandler) o;
-			} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException | NoSuchMethodException | SecurityException e) {
+				handler = createMessageHandler(handlerName);
+			} catch (ReflectiveOperationException | ClassCastException e) {
 				e.printStackTrace();
 				System.exit(1);
 			}
@@ -244,6 +260,7 @@ public class SearchClient extends AbstractMailClient {
 			client.setQuiet(quiet);
 			client.setPurge(purge);
 			client.setSort(sort);
+			client.setThreads(threads);
 			
 			if (tabular && handler instanceof SimpleMessageHandler)
 				((SimpleMessageHandler)handler).setTabular(true);
@@ -254,8 +271,18 @@ public class SearchClient extends AbstractMailClient {
 			if (copyToFolderName != null)
 				client.setMoveToFolder(copyToFolderName);
 			
+			ModSeqState syncState = syncStateFile == null ? null : new ModSeqState(new File(syncStateFile));
+			
+			client.setSyncState(syncState);
+			
 			client.run(folderList, term);
-		} catch (MessagingException | URISyntaxException e) {
+			
+			if (handler != null)
+				handler.close();
+			
+			if (syncState != null)
+				syncState.close();
+		} catch (MessagingException | URISyntaxException | IOException e) {
 			e.printStackTrace();
 			System.exit(1);
 		}
@@ -280,6 +307,11 @@ public class SearchClient extends AbstractMailClient {
 		"",
 		"\t-handler\tName of the class which will process matching messages [default: com.obliquity.mailtool.messagehandler.SimpleMessageHandler]",
 		"",
+		"\t-threads\tNumber of folders to search at the same time, each on its own pooled IMAP connection [default: 1]",
+		"",
+		"\t-syncstate\tFile in which to remember how far each folder has been searched, so that the next run",
+		"\t\t\tlooks only at messages added or changed since then, on servers which support CONDSTORE",
+		"",
 		"NOTE THAT -purge CANNOT BE USED WITH -recursive",
 		"",
 		"SEARCH CRITERIA",
@@ -364,8 +396,34 @@ public class SearchClient extends AbstractMailClient {
 		return sort;
 	}
 
+	public void setThreads(int threads) {
+		this.threads = threads > 0 ? threads : 1;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+
+	/*
+	 * With a sync state, each folder is searched only among the messages which have been
+	 * added or whose flags have changed since the previous run.
+	 */
+	public void setSyncState(ModSeqState syncState) {
+		this.syncState = syncState;
+	}
+	
 	public void setHandler(MessageHandler handler) {
 		this.messageHandler = handler;
+		
+		prefetcher = handler == null ? createDisplayPrefetcher() : new MessagePrefetcher(handler.getFetchProfile());
+	}
+	
+	private static MessagePrefetcher createDisplayPrefetcher() {
+		MessagePrefetcher prefetcher = new MessagePrefetcher();
+		
+		prefetcher.addItem(FetchProfile.Item.CONTENT_INFO);
+		
+		return prefetcher;
 	}
 	
 	public void setMoveToFolder(String copyToFolderName) throws MessagingException {
@@ -483,13 +541,21 @@ public class SearchClient extends AbstractMailClient {
 				
 				Folder folder = store.getDefaultFolder();
 				
-				processFolder(folder, term);
-			} else {
-				for (String f : folders) {
-					Folder folder = store.getFolder(f);
-					
+				if (threads > 1)
+					processFoldersInParallel(new Folder[] { folder }, term);
+				else
 					processFolder(folder, term);
-				}
+			} else {
+				Folder[] roots = new Folder[folders.length];
+				
+				for (int i = 0; i < folders.length; i++)
+					roots[i] = store.getFolder(folders[i]);
+				
+				if (threads > 1)
+					processFoldersInParallel(roots, term);
+				else
+					for (Folder folder : roots)
+						processFolder(folder, term);
 			}
 
 			store.close();
@@ -521,44 +587,189 @@ public class SearchClient extends AbstractMailClient {
 		}
 	}
 	
+	/*
+	 * Unless the results must be sorted, the folder is searched one page at a time and each
+	 * page is handled as soon as it is found, so memory use does not grow with folder size.
+	 */
 	private void processMessages(Folder folder, SearchTerm term) throws MessagingException, IOException {
+		if (sort || syncState != null) {
+			Message[] messages = searchMessages(folder, term);
+		
+			if (messages != null)
+				dispatchMessages(folder, messages);
+			
+			return;
+		}
+		
+		if (!openFolder(folder))
+			return;
+		
+		PagedMessageSearch search = new PagedMessageSearch(folder, term);
+		
+		Folder copyTo = getCopyToFolder(folder);
+		
+		boolean selecting = isSelecting(copyTo);
+		
+		if (!quiet && !selecting)
+			search.setPrefetcher(prefetcher);
+		
+		int counter = 0;
+		
+		Message[] page;
+		
+		while ((page = search.nextPage()) != null) {
+			if (selecting) {
+				Message[] selected = messageHandler.selectMessages(folder, page);
+				
+				prefetcher.prefetch(folder, selected);
+				
+				handleMessages(selected, counter, copyTo);
+				
+				counter += page.length;
+			} else
+				counter += handleMessages(page, counter, copyTo);
+		}
+		
+		closeFolder(folder, counter);
+	}
+	
+	private boolean openFolder(Folder folder) {
 		try {
 			folder.open(purge ? Folder.READ_WRITE : Folder.READ_ONLY);
+			return true;
 		}
 		catch (MessagingException e) {
 			System.err.println("***** Failed to open " + folder.getFullName() + " : " + e.getMessage() + "\n");
-			return;
+			return false;
 		}
+	}
+	
+	private Message[] searchMessages(Folder folder, SearchTerm term) throws MessagingException {
+		if (syncState != null)
+			return searchChangedMessages(folder, term);
 		
-		int counter = 0;
+		if (!openFolder(folder))
+			return null;
+		
+		if (sort && canSortOnServer(folder, term))
+			return ((IMAPFolder)folder).getSortedMessages(new SortTerm[] { SortTerm.DATE }, term);
 		
-		Message[] messages = folder.search(term);
+		Message[] messages = AttachmentTerm.search(folder, term);
 		
-		if (sort)
+		if (sort) {
+			prefetcher.prefetch(folder, messages);
 			Arrays.sort(messages, comparator);
+		}
+		
+		return messages;
+	}
+	
+	private Message[] searchChangedMessages(Folder folder, SearchTerm term) throws MessagingException {
+		ModSeqState.Changes changes = null;
 		
-		if (messages != null) {
-			if (copyToFolder != null)
-				folder.copyMessages(messages, copyToFolder);
+		try {
+			changes = syncState.open(getFolderKey(folder), folder, purge ? Folder.READ_WRITE : Folder.READ_ONLY);
+		} catch (MessagingException e) {
+			System.err.println("***** Failed to open " + folder.getFullName() + " : " + e.getMessage() + "\n");
+			return null;
+		}
+		
+		Message[] messages;
+		
+		if (changes == null)
+			messages = AttachmentTerm.search(folder, term);
+		else {
+			if (!quiet && messageHandler == null)
+				System.out.println(changes.getMessages().length + " messages added or changed, " +
+						changes.getVanishedCount() + " expunged since the last run\n");
+			
+			Message[] changed = changes.getMessages();
 			
-			for (int i = 0; i < messages.length; i++) {
-				if (quiet) {
-					counter++;
-				} else if (messageHandler != null) {
+			messages = changed.length == 0 ? changed : AttachmentTerm.search(folder, term, changed);
+		}
+		
+		if (sort) {
+			prefetcher.prefetch(folder, messages);
+			Arrays.sort(messages, comparator);
+		}
+		
+		return messages;
+	}
+	
+	/*
+	 * Servers which support the SORT extension can sort the results by date themselves,
+	 * so that the dates need not be fetched first.  SORT takes the same criteria as SEARCH,
+	 * so this is not possible when the term includes an attachment type.
+	 */
+	private boolean canSortOnServer(Folder folder, SearchTerm term) throws MessagingException {
+		if (!(folder instanceof IMAPFolder) || AttachmentTerm.containsAttachmentTerm(term))
+			return false;
+		
+		return ((IMAPStore)folder.getStore()).hasCapability("SORT");
+	}
+	
+	private void dispatchMessages(Folder folder, Message[] messages) throws MessagingException, IOException {
+		Folder copyTo = getCopyToFolder(folder);
+		
+		int found = messages.length;
+		
+		if (isSelecting(copyTo))
+			messages = messageHandler.selectMessages(folder, messages);
+		
+		int pageSize = PagedMessageSearch.DEFAULT_PAGE_SIZE;
+		
+		for (int start = 0; start < messages.length; start += pageSize) {
+			Message[] page = Arrays.copyOfRange(messages, start, Math.min(start + pageSize, messages.length));
+			
+			if (!quiet)
+				prefetcher.prefetch(folder, page);
+			
+			handleMessages(page, start, copyTo);
+		}
+		
+		closeFolder(folder, found);
+	}
+	
+	/*
+	 * The handler may leave out messages it has already seen, but only when it is the sole
+	 * consumer, since otherwise every message must still be copied or purged.
+	 */
+	private boolean isSelecting(Folder copyTo) {
+		return messageHandler != null && !quiet && !purge && copyTo == null;
+	}
+	
+	private Folder getCopyToFolder(Folder folder) throws MessagingException {
+		return copyToFolder == null ? null : folder.getStore().getFolder(copyToFolder.getFullName());
+	}
+	
+	private int handleMessages(Message[] messages, int offset, Folder copyTo) throws MessagingException, IOException {
+		if (copyTo != null && messages.length > 0)
+			messages[0].getFolder().copyMessages(messages, copyTo);
+		
+		for (int i = 0; i < messages.length; i++) {
+			if (!quiet) {
+				if (messageHandler != null) {
 					messageHandler.handleMessage(messages[i]);
 				} else {
-					System.out.println("Message " + i + ":");
+					System.out.println("Message " + (offset + i) + ":");
 					displayMessage(messages[i], System.out);
 					System.out.println();
 				}
-				
-				if (purge)
-					messages[i].setFlag(Flags.Flag.DELETED, true);
-			}				
+			}
+			
+			if (purge)
+				messages[i].setFlag(Flags.Flag.DELETED, true);
 		}
 		
+		return messages.length;
+	}
+	
+	private void closeFolder(Folder folder, int counter) throws MessagingException {
 		folder.close(purge);
 		
+		if (syncState != null)
+			syncState.commit(getFolderKey(folder));
+		
 		if (quiet)
 			System.out.println("Messages " + (purge ? "purged" : "found") + " : " + counter);
 	}
@@ -571,4 +782,148 @@ public class SearchClient extends AbstractMailClient {
 			processFolder(subfolders[i], term);
 	}
 
+	/*
+	 * Parallel mode: the folder tree is listed up front, then the folders are searched
+	 * concurrently on a fixed pool of connections.  Matching messages are passed to the
+	 * handler one folder at a time, in the same order as the serial search would visit them,
+	 * unless the handler is thread-safe, in which case each thread passes its folder's
+	 * messages to it as soon as they are found.
+	 */
+	private void processFoldersInParallel(Folder[] roots, SearchTerm term) throws Exception {
+		if (recursive && purge && !Boolean.getBoolean(DANGER_MODE))
+			throw new Exception("The purge and recursive options are mutually exclusive, to avoid disasters!");
+		
+		List<String> folderNames = listFolderNames(roots);
+		
+		// The main folder holds one connection for the whole run, and a worker holds its own
+		// while it waits for its turn, so with more workers than the remaining connections
+		// the next folder in order could wait for a connection forever.
+		int available = getConnectionPool().getMaxPerHost() - 1;
+		
+		if (available < 1)
+			throw new Exception("Parallel search needs mailtool.pool.maxperhost to be at least 2");
+		
+		int workers = Math.min(threads, available);
+		
+		if (workers < threads)
+			System.err.println("Using " + workers + " threads, since only " + available + " more connections are allowed to the server");
+		
+		if (!quiet && messageHandler == null)
+			System.out.println("Searching " + folderNames.size() + " folders using " + workers + " threads\n");
+		
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		
+		DispatchSequencer sequencer = new DispatchSequencer(folderNames.size());
+		
+		boolean ordered = messageHandler == null || !messageHandler.isThreadSafe();
+		
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		
+		for (int i = 0; i < folderNames.size(); i++) {
+			final int index = i;
+			final String folderName = folderNames.get(i);
+			
+			futures.add(executor.submit(() -> {
+				StoreLease lease = leaseStore(getMainFolderURI());
+				
+				Folder folder = null;
+				
+				try {
+					folder = lease.getStore().getFolder(folderName);
+					
+					Message[] messages = searchMessages(folder, term);
+					
+					if (messages != null) {
+						if (ordered)
+							sequencer.awaitTurn(index);
+						
+						if (!quiet && messageHandler == null)
+							System.out.println("Searching folder " + folderName + "\n");
+
+						dispatchMessages(folder, messages);
+					}
+				} finally {
+					sequencer.done(index);
+					
+					// A folder left open by a failure would tie up the connection when it
+					// goes back to the pool.
+					if (folder != null && folder.isOpen()) {
+						try {
+							folder.close(false);
+						} catch (MessagingException e) {
+							// The connection is checked when it is next leased.
+						}
+					}
+					
+					lease.close();
+				}
+				
+				return null;
+			}));
+		}
+		
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				System.err.println("***** Failed to search " + folderNames.get(i) + " : " + e.getCause().getMessage() + "\n");
+			}
+		}
+		
+		executor.shutdown();
+	}
+	
+	private List<String> listFolderNames(Folder[] roots) {
+		List<String> names = new ArrayList<String>();
+		
+		for (Folder root : roots) {
+			try {
+				int type = root.getType();
+				
+				if ((type & Folder.HOLDS_MESSAGES) != 0)
+					names.add(root.getFullName());
+				
+				if (recursive && (type & Folder.HOLDS_FOLDERS) != 0) {
+					Folder[] descendants = root.list("*");
+					
+					Arrays.sort(descendants, new FolderPathComparator());
+					
+					for (Folder folder : descendants)
+						if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0)
+							names.add(folder.getFullName());
+				}
+			} catch (MessagingException e) {
+				System.err.println("***** Failed to list " + root.getFullName() + " : " + e.getMessage() + "\n");
+			}
+		}
+		
+		return names;
+	}
+	
+	/*
+	 * Hands out turns in folder order.  A folder whose search failed is marked done
+	 * without taking its turn, so it never holds up the folders after it.
+	 */
+	private static class DispatchSequencer {
+		private final boolean[] done;
+		private int next = 0;
+		
+		DispatchSequencer(int size) {
+			done = new boolean[size];
+		}
+		
+		synchronized void awaitTurn(int index) throws InterruptedException {
+			while (next != index)
+				wait();
+		}
+		
+		synchronized void done(int index) {
+			done[index] = true;
+			
+			while (next < done.length && done[next])
+				next++;
+			
+			notifyAll();
+		}
+	}
 }
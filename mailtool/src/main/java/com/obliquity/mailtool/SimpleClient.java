@@ -138,6 +138,13 @@ public class SimpleClient extends AbstractMailClient {
 
 		Message message[] = folder.getMessages();
 
+		MessagePrefetcher prefetcher = new MessagePrefetcher();
+		
+		if (verbose)
+			prefetcher.addItem(FetchProfile.Item.CONTENT_INFO);
+		
+		prefetcher.prefetch(folder, message);
+
 		for (int i = 0, n = message.length; i < n; i++) {
 			Address[] to = message[i].getRecipients(Message.RecipientType.TO);
 
@@ -0,0 +1,412 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+
+/*
+ * A pool of authenticated Store connections, keyed by scheme, user, host and port.
+ * 
+ * Idle stores are checked with isConnected() before they are handed out again, which
+ * for IMAP sends a NOOP to the server, and are closed once they have been idle for longer
+ * than the idle timeout.  Anything which talks to the server is done outside the pool's
+ * lock, so that one slow server does not hold up callers waiting on another.  The number of connections open to any one host is capped, and
+ * callers wait for a lease to be returned when the cap has been reached.
+ * 
+ * The limits can be set via the system properties mailtool.pool.maxperhost (default 8)
+ * and mailtool.pool.idletimeout (in seconds, default 300).
+ */
+public class StoreConnectionPool {
+	private static final StoreConnectionPool sharedPool = new StoreConnectionPool(
+			Integer.getInteger("mailtool.pool.maxperhost", 8),
+			1000L * Integer.getInteger("mailtool.pool.idletimeout", 300));
+	
+	private final int maxPerHost;
+	private final long idleTimeout;
+	
+	private final Map<String, Session> sessions = new HashMap<String, Session>();
+	private final Properties sessionProperties = new Properties();
+	private final Map<String, Deque<IdleStore>> idleStores = new HashMap<String, Deque<IdleStore>>();
+	private final Map<String, Integer> openCounts = new HashMap<String, Integer>();
+	
+	private Timer evictionTimer = null;
+	
+	public static StoreConnectionPool getSharedPool() {
+		return sharedPool;
+	}
+	
+	public StoreConnectionPool(int maxPerHost, long idleTimeout) {
+		this.maxPerHost = maxPerHost > 0 ? maxPerHost : 1;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	public int getMaxPerHost() {
+		return maxPerHost;
+	}
+	
+	/*
+	 * Adds a property to every Session created from now on.  Sessions which already exist
+	 * are not changed, so this should be called before the first store is acquired.
+	 */
+	public synchronized void setSessionProperty(String name, String value) {
+		sessionProperties.setProperty(name, value);
+	}
+	
+	/*
+	 * Returns the Session used for the account named in the URI, creating it if need be.
+	 */
+	public synchronized Session getSession(String folderURI) throws URISyntaxException {
+		URI uri = new URI(folderURI);
+		
+		return getSession(getKey(uri), uri);
+	}
+	
+	/*
+	 * Returns a lease on a connected store for the account named in the URI.  The lease
+	 * must be closed to return the store to the pool.
+	 */
+	public StoreLease acquire(String folderURI) throws URISyntaxException, MessagingException {
+		URI uri = new URI(folderURI);
+		
+		String key = getKey(uri);
+		String hostKey = getHostKey(uri);
+		
+		Session session;
+		
+		synchronized (this) {
+			session = getSession(key, uri);
+		}
+		
+		List<Store> discarded = new ArrayList<Store>();
+		
+		IdleStore idle = reserve(key, hostKey, uri, discarded);
+		
+		// Checking and closing stores talks to the server, so it is done outside the lock.
+		
+		for (Store store : discarded)
+			closeQuietly(store);
+		
+		if (idle != null) {
+			if (idle.store.isConnected())
+				return new StoreLease(this, key, hostKey, idle.store, uri);
+			
+			// The dead store's place in the count passes to its replacement.
+			closeQuietly(idle.store);
+		}
+		
+		// Connect outside the lock, since the handshake and login can be slow.
+		
+		Store store = null;
+		
+		try {
+			store = session.getStore(uri.getScheme());
+			
+			store.connect();
+		} catch (MessagingException | RuntimeException e) {
+			synchronized (this) {
+				decrementOpenCount(hostKey);
+				notifyAll();
+			}
+			
+			throw e;
+		}
+		
+		return new StoreLease(this, key, hostKey, store, uri);
+	}
+	
+	/*
+	 * Takes an idle store for the account, or reserves a place in the host's count for a
+	 * new store, waiting whilst the host is at its cap.  If the only idle stores on the
+	 * host belong to other accounts, the oldest gives up its place and is added to the
+	 * discarded list, for the caller to close outside the lock.
+	 */
+	private synchronized IdleStore reserve(String key, String hostKey, URI uri, List<Store> discarded)
+			throws MessagingException {
+		while (true) {
+			IdleStore idle = pollIdleStore(key);
+			
+			if (idle != null)
+				return idle;
+			
+			if (getOpenCount(hostKey) < maxPerHost) {
+				openCounts.put(hostKey, getOpenCount(hostKey) + 1);
+				return null;
+			}
+			
+			IdleStore oldest = pollOldestIdleStore(hostKey);
+			
+			if (oldest != null) {
+				discarded.add(oldest.store);
+				return null;
+			}
+			
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MessagingException("Interrupted whilst waiting for a connection to " + uri.getHost(), e);
+			}
+		}
+	}
+	
+	void release(StoreLease lease) {
+		Store store = lease.getStore();
+		
+		// For IMAP this sends a NOOP, so it is not done whilst holding the lock.
+		boolean connected = store.isConnected();
+		
+		synchronized (this) {
+			if (connected) {
+				Deque<IdleStore> idle = idleStores.get(lease.getKey());
+				
+				if (idle == null) {
+					idle = new ArrayDeque<IdleStore>();
+					idleStores.put(lease.getKey(), idle);
+				}
+				
+				idle.push(new IdleStore(store, System.currentTimeMillis()));
+				
+				startEvictionTimer();
+			} else {
+				decrementOpenCount(lease.getHostKey());
+			}
+			
+			notifyAll();
+		}
+	}
+	
+	/*
+	 * Closes every store which has been idle for longer than the idle timeout.
+	 */
+	public void evictIdleStores() {
+		List<Store> evicted = new ArrayList<Store>();
+		
+		synchronized (this) {
+			long cutoff = System.currentTimeMillis() - idleTimeout;
+			
+			for (Map.Entry<String, Deque<IdleStore>> entry : idleStores.entrySet()) {
+				Iterator<IdleStore> iter = entry.getValue().iterator();
+				
+				while (iter.hasNext()) {
+					IdleStore idle = iter.next();
+					
+					if (idle.since < cutoff) {
+						iter.remove();
+						evicted.add(idle.store);
+						decrementOpenCount(getHostKey(entry.getKey()));
+					}
+				}
+			}
+			
+			notifyAll();
+		}
+		
+		for (Store store : evicted)
+			closeQuietly(store);
+	}
+	
+	/*
+	 * Closes all idle stores.  Stores which are currently leased are closed when they
+	 * are returned.
+	 */
+	public void close() {
+		List<Store> closing = new ArrayList<Store>();
+		
+		synchronized (this) {
+			List<String> keys = new ArrayList<String>(idleStores.keySet());
+			
+			for (String key : keys) {
+				Deque<IdleStore> idle = idleStores.remove(key);
+				
+				for (IdleStore is : idle) {
+					closing.add(is.store);
+					decrementOpenCount(getHostKey(key));
+				}
+			}
+			
+			if (evictionTimer != null) {
+				evictionTimer.cancel();
+				evictionTimer = null;
+			}
+			
+			notifyAll();
+		}
+		
+		for (Store store : closing)
+			closeQuietly(store);
+	}
+	
+	private IdleStore pollIdleStore(String key) {
+		Deque<IdleStore> idle = idleStores.get(key);
+		
+		return idle == null ? null : idle.poll();
+	}
+	
+	private IdleStore pollOldestIdleStore(String hostKey) {
+		IdleStore oldest = null;
+		Deque<IdleStore> oldestQueue = null;
+		
+		for (Map.Entry<String, Deque<IdleStore>> entry : idleStores.entrySet()) {
+			if (!getHostKey(entry.getKey()).equals(hostKey) || entry.getValue().isEmpty())
+				continue;
+			
+			IdleStore candidate = entry.getValue().peekLast();
+			
+			if (oldest == null || candidate.since < oldest.since) {
+				oldest = candidate;
+				oldestQueue = entry.getValue();
+			}
+		}
+		
+		if (oldest != null)
+			oldestQueue.removeLast();
+		
+		return oldest;
+	}
+	
+	private void startEvictionTimer() {
+		if (evictionTimer != null || idleTimeout <= 0)
+			return;
+		
+		evictionTimer = new Timer("StoreConnectionPool-evictor", true);
+		
+		long period = Math.max(1000L, idleTimeout / 2);
+		
+		evictionTimer.schedule(new TimerTask() {
+			public void run() {
+				evictIdleStores();
+			}
+		}, period, period);
+	}
+	
+	private int getOpenCount(String hostKey) {
+		Integer count = openCounts.get(hostKey);
+		
+		return count == null ? 0 : count;
+	}
+	
+	private void decrementOpenCount(String hostKey) {
+		int count = getOpenCount(hostKey) - 1;
+		
+		if (count > 0)
+			openCounts.put(hostKey, count);
+		else
+			openCounts.remove(hostKey);
+	}
+	
+	private void closeQuietly(Store store) {
+		try {
+			store.close();
+		} catch (MessagingException e) {
+			// The connection is being discarded anyway.
+		}
+	}
+	
+	private static String getKey(URI uri) {
+		return uri.getScheme() + "://" + uri.getRawUserInfo() + "@" + uri.getHost() + ":" + uri.getPort();
+	}
+	
+	private static String getHostKey(URI uri) {
+		return uri.getHost() + ":" + uri.getPort();
+	}
+	
+	private static String getHostKey(String key) {
+		return key.substring(key.lastIndexOf('@') + 1);
+	}
+	
+	/*
+	 * One Session is kept per account, so that the password is only requested once
+	 * however many connections are opened.
+	 */
+	private Session getSession(String key, URI uri) {
+		Session session = sessions.get(key);
+		
+		if (session == null) {
+			session = createSession(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort());
+			sessions.put(key, session);
+		}
+		
+		return session;
+	}
+	
+	private Session createSession(String scheme, String user, String host, int port) {
+		Properties props = new Properties();
+
+		props.put("mail." + scheme + ".host", host);
+		props.put("mail." + scheme + ".user", user);
+
+		if (port > 0)
+			props.put("mail." + scheme + ".port", port);
+
+		Authenticator auth = new SimpleAuthenticator(user);
+
+		if (Boolean.getBoolean("mailtool.useinsecuressl")) {
+			System.err.println("WARNING: Using insecure SSL, server certificate will not be checked.");
+		    props.setProperty("mail.imap.ssl.enable", "true");
+		    props.setProperty("mail.imap.ssl.socketFactory.class",
+							"com.obliquity.mailtool.ssl.InsecureSSLSocketFactory");
+		    props.setProperty("mail.imap.ssl.socketFactory.fallback", "false");
+
+		}
+		
+		props.put("mail.mime.allowutf8", true);
+		
+		props.putAll(sessionProperties);
+		
+		Session session = Session.getInstance(props, auth);
+
+		boolean debug = Boolean.getBoolean("mail.debug");
+
+		session.setDebug(debug);
+
+		return session;
+	}
+	
+	private static class IdleStore {
+		final Store store;
+		final long since;
+		
+		IdleStore(Store store, long since) {
+			this.store = store;
+			this.since = since;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool;
+
+import java.net.URI;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+
+/*
+ * A store borrowed from a StoreConnectionPool.  Closing the lease returns the store to
+ * the pool rather than disconnecting it.
+ */
+public class StoreLease implements AutoCloseable {
+	private final StoreConnectionPool pool;
+	private final String key;
+	private final String hostKey;
+	private final Store store;
+	private final URI uri;
+	private boolean released = false;
+	
+	StoreLease(StoreConnectionPool pool, String key, String hostKey, Store store, URI uri) {
+		this.pool = pool;
+		this.key = key;
+		this.hostKey = hostKey;
+		this.store = store;
+		this.uri = uri;
+	}
+	
+	public Store getStore() {
+		return store;
+	}
+	
+	/*
+	 * Returns the folder named by the path of the URI used to acquire this lease, or the
+	 * default folder if the path is empty.
+	 */
+	public Folder getFolder() throws MessagingException {
+		String path = uri.getPath();
+		
+		if (path == null)
+			path = "";
+
+		if (path.startsWith("/"))
+			path = path.substring(1);
+
+		return path.length() > 0 ? store.getFolder(path) : store.getDefaultFolder();
+	}
+	
+	String getKey() {
+		return key;
+	}
+	
+	String getHostKey() {
+		return hostKey;
+	}
+	
+	public synchronized void close() {
+		if (released)
+			return;
+		
+		released = true;
+		
+		pool.release(this);
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool.messagehandler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.mail.FetchProfile;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+
+import com.obliquity.mailtool.MessageHandler;
+
+/*
+ * Writes the same rows as DatabaseMessageHandler, but to tab-separated files which MySQL's
+ * LOAD DATA can read far faster than it could accept them as INSERT statements.  This is
+ * meant for the first load of a large archive into the empty tables described by
+ * sql/databasemessagehandler-schema.sql.
+ * 
+ * The files folder.tsv, address.tsv, message.tsv, recipient.tsv and attachment.tsv are
+ * written to the directory named by the system property
+ * 
+ *   com.obliquity.mailtool.messagehandler.bulkloadmessagehandler.directory
+ * 
+ * (default bulkload), together with load.sql, which loads them in the right order.  Run
+ * it from that directory with
+ * 
+ *   mysql --local-infile=1 DATABASE < load.sql
+ * 
+ * Every row is given its ID here, counting from 1, and the folder and address names are
+ * kept in memory so that each is written once.  Fields use the LOAD DATA defaults:
+ * backslash escapes for tab, newline, carriage return, NUL and backslash, and \N for NULL.
+ * 
+ * The handler is thread-safe, since the rows for each message are written under the
+ * handler's lock, so one instance can be shared by every worker.  Each message is read
+ * into a MessageRecord before the lock is taken, so the workers still read in parallel.
+ */
+public class BulkLoadMessageHandler implements MessageHandler {
+	private static final String[] TABLES = { "folder", "address", "message", "recipient", "attachment" };
+	
+	private static final String[] COLUMNS = {
+		"id, name",
+		"id, address",
+		"id, folder_id, uidvalidity, uid, `from`, message_id, sent_date, subject, `size`",
+		"id, message_id, address_id, type",
+		"id, message_id, mime_type, filename, `size`"
+	};
+	
+	private static final int FOLDER = 0, ADDRESS = 1, MESSAGE = 2, RECIPIENT = 3, ATTACHMENT = 4;
+	
+	private final SimpleDateFormat datefmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	
+	private final File directory;
+	private final Writer[] writers = new Writer[TABLES.length];
+	private final int[] lastIDs = new int[TABLES.length];
+	
+	private final Map<String, Integer> folderIDs = new HashMap<String, Integer>();
+	private final Map<String, Integer> addressIDs = new HashMap<String, Integer>();
+	
+	private boolean closed = false;
+	
+	public BulkLoadMessageHandler() throws IOException {
+		String propertyPrefix = this.getClass().getName().toLowerCase();
+		
+		directory = new File(System.getProperty(propertyPrefix + ".directory", "bulkload"));
+		
+		if (!directory.exists())
+			directory.mkdirs();
+		
+		for (int i = 0; i < TABLES.length; i++)
+			writers[i] = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(directory, TABLES[i] + ".tsv")), StandardCharsets.UTF_8), 1 << 20);
+	}
+	
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
+	
+	@Override
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.SIZE);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		profile.add(UIDFolder.FetchProfileItem.UID);
+		
+		return profile;
+	}
+	
+	@Override
+	public void handleMessage(Message message) throws MessagingException, IOException {
+		writeRecord(new MessageRecord(message));
+	}
+	
+	private synchronized void writeRecord(MessageRecord record) throws IOException {
+		int folderID = getNameID(folderIDs, FOLDER, record.getFolderName());
+		
+		int messageID = ++lastIDs[MESSAGE];
+		
+		boolean hasUID = record.getUID() >= 0;
+		
+		writeRow(MESSAGE, messageID, folderID,
+				hasUID ? record.getUIDValidity() : null,
+				hasUID ? record.getUID() : null,
+				record.getFrom() == null ? "NULL" : record.getFrom(),
+				record.getMessageID(),
+				record.getSentDate() == null ? null : datefmt.format(record.getSentDate()),
+				record.getSubject(),
+				record.getSize());
+		
+		for (MessageRecord.Recipient recipient : record.getRecipients()) {
+			int addressID = getNameID(addressIDs, ADDRESS, recipient.getAddress());
+			
+			writeRow(RECIPIENT, ++lastIDs[RECIPIENT], messageID, addressID, recipient.getType());
+		}
+		
+		for (MessageRecord.Attachment attachment : record.getAttachments())
+			writeRow(ATTACHMENT, ++lastIDs[ATTACHMENT], messageID, attachment.getMimeType(),
+					attachment.getFilename(), attachment.getSize());
+	}
+	
+	/*
+	 * Returns the ID of the folder or address, writing a row for it the first time it is
+	 * seen.  Names are compared without regard to case, which is close to the schema's
+	 * collation but not the same, so the unique keys are left to catch any names which
+	 * the collation treats as equal and this does not.
+	 */
+	private int getNameID(Map<String, Integer> ids, int table, String name) throws IOException {
+		String key = name.toLowerCase(Locale.ROOT);
+		
+		Integer id = ids.get(key);
+		
+		if (id == null) {
+			id = ++lastIDs[table];
+			
+			ids.put(key, id);
+			
+			writeRow(table, id, name);
+		}
+		
+		return id;
+	}
+	
+	private void writeRow(int table, Object... fields) throws IOException {
+		Writer writer = writers[table];
+		
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				writer.write('\t');
+			
+			writeField(writer, fields[i]);
+		}
+		
+		writer.write('\n');
+	}
+	
+	private static void writeField(Writer writer, Object field) throws IOException {
+		if (field == null) {
+			writer.write("\\N");
+			return;
+		}
+		
+		String value = field.toString();
+		
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			
+			switch (c) {
+			case '\\':
+				writer.write("\\\\");
+				break;
+				
+			case '\t':
+				writer.write("\\t");
+				break;
+				
+			case '\n':
+				writer.write("\\n");
+				break;
+				
+			case '\r':
+				writer.write("\\r");
+				break;
+				
+			case '\0':
+				writer.write("\\0");
+				break;
+				
+			default:
+				writer.write(c);
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * The foreign key checks are switched off during the load, since the rows refer to
+	 * each other consistently by construction.  The unique checks stay on, so that a name
+	 * which the collation treats as a duplicate fails the load rather than being stored
+	 * twice.
+	 */
+	private void writeLoadScript() throws IOException {
+		PrintStream ps = new PrintStream(new File(directory, "load.sql"), "UTF-8");
+		
+		ps.println("SET foreign_key_checks = 0;");
+		ps.println();
+		
+		for (int i = 0; i < TABLES.length; i++) {
+			ps.println("LOAD DATA LOCAL INFILE '" + TABLES[i] + ".tsv' INTO TABLE `" + TABLES[i] + "`");
+			ps.println("  CHARACTER SET utf8mb4");
+			ps.println("  (" + COLUMNS[i] + ");");
+			ps.println();
+		}
+		
+		ps.println("SET foreign_key_checks = 1;");
+		
+		ps.close();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		
+		closed = true;
+		
+		for (Writer writer : writers)
+			writer.close();
+		
+		writeLoadScript();
+		
+		System.err.println("Wrote " + lastIDs[MESSAGE] + " messages, " + lastIDs[RECIPIENT] + " recipients, " +
+				lastIDs[ATTACHMENT] + " attachments, " + lastIDs[FOLDER] + " folders and " + lastIDs[ADDRESS] +
+				" addresses to " + directory);
+	}
+}
@@ -25,8 +25,6 @@
 package com.obliquity.mailtool.messagehandler;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -34,272 +32,786 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Folder;
 import javax.mail.Message;
-import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
-import javax.mail.Multipart;
-import javax.mail.Part;
-import javax.mail.internet.InternetAddress;
-import javax.mail.internet.MimeMessage;
+import javax.mail.UIDFolder;
+import javax.mail.URLName;
 
 import com.obliquity.database.DatabaseConnectionManager;
 import com.obliquity.database.DatabaseConnectionManagerException;
+import com.obliquity.database.DatabaseConnectionPool;
+import com.obliquity.database.SqlDialect;
 import com.obliquity.mailtool.MessageHandler;
 
+/*
+ * Stores the details of each message in the database described by
+ * sql/databasemessagehandler-schema.sql.
+ * 
+ * By default each message is committed as soon as it has been handled.  For bulk loads,
+ * set the system property
+ * 
+ *   com.obliquity.mailtool.messagehandler.databasemessagehandler.batchsize
+ * 
+ * to the number of messages per transaction.  Messages are then collected and written
+ * with JDBC batches, one for the messages, whose generated keys link the recipients and
+ * attachments, and one each for those.  A batch is also committed once it is older than
+ * the number of seconds given by the property ...databasemessagehandler.commitinterval
+ * (default 10), and when the handler is closed.  With MySQL, add
+ * rewriteBatchedStatements=true to the JDBC URL so that each batch is sent as multi-row
+ * INSERT statements.
+ * 
+ * Each message is stored with its folder's UIDVALIDITY and its UID, which together are
+ * unique, so the index can be refreshed by running the same search again.  In this
+ * incremental mode, which is the default, the first time the handler sees a folder it
+ * deletes the messages which have been expunged from it since the last run, or all of
+ * them if its UIDVALIDITY has changed, and it then passes over the messages which are
+ * already in the database, before they are fetched from the server.  Messages which did
+ * not come through that selection, such as those handled by FolderMonitor, are checked
+ * against the database instead as each batch is written.  For a
+ * first load into empty tables, set the property ...databasemessagehandler.incremental
+ * to false to skip these checks.
+ * 
+ * Folders are stored by their full names alone, so one database can only index one
+ * account.  In incremental mode, a message or folder from a second account is refused,
+ * since its INBOX would otherwise delete the first account's INBOX.
+ * 
+ * The database may be MySQL or H2, which can run embedded in this process from a file,
+ * with a url such as jdbc:h2:~/mailtool/index in the .dbprops file and no server at all.
+ * The dialect is chosen from the url.  With H2, if the message table does not exist, the
+ * missing tables are created from sql/databasemessagehandler-schema-h2.sql, unless the
+ * property ...databasemessagehandler.createschema is false.  With MySQL this is off by
+ * default, since sql/databasemessagehandler-schema.sql drops the tables before creating
+ * them, so run that script by hand or set the property to true.
+ * 
+ * The handler is thread-safe.  Each thread which calls handleMessage has its own batch,
+ * so several folders can be loaded at once.  Connections come from the pool for the
+ * .dbprops file, whose size is set by the pool.maxsize property in that file.  A thread
+ * only holds a connection while it writes a batch or checks a folder, and never more than
+ * one at a time, so more threads than connections merely take turns.
+ * 
+ * The folder and address tables are loaded into memory at startup, so that names need
+ * not be looked up one at a time.  For very large address tables, set the property
+ * ...databasemessagehandler.preload to false, and the names used by each batch are
+ * looked up together instead.  New names are given their IDs here and committed before
+ * the messages which use them, so only one loader process should run at a time.
+ */
 public class DatabaseMessageHandler implements MessageHandler {
-	private Connection conn;
-	private Map<String, Integer> folderIDMap = new HashMap<String, Integer>();
-	private Map<String, Integer> addressIDMap = new HashMap<String, Integer>();
+	private final DatabaseConnectionPool pool;
+	private final SqlDialect dialect;
+	private final NameIDCache folderIDs;
+	private final NameIDCache addressIDs;
 	private boolean debug = false;
 	private SimpleMessageHandler debugHandler = new SimpleMessageHandler();
 	
+	private int batchSize = 1;
+	private long commitInterval = 10000;
+	private boolean incremental = true;
+	
+	private String indexedStore = null;
+	
+	// The folders whose messages have been selected against the stored UIDs.
+	private final Set<String> selectedFolders = ConcurrentHashMap.newKeySet();
+	
+	private final List<Ingestor> ingestors = new ArrayList<Ingestor>();
+	private final ThreadLocal<Ingestor> threadIngestor = new ThreadLocal<Ingestor>();
+	
 	public DatabaseMessageHandler() throws ClassNotFoundException, DatabaseConnectionManagerException, IOException, SQLException {
-		conn = DatabaseConnectionManager.getConnection(this);
-		prepareStatements();
-		conn.setAutoCommit(false);
+		pool = DatabaseConnectionManager.getConnectionPool(this);
+		
+		String propertyPrefix = this.getClass().getName().toLowerCase();
+		
+		debug = Boolean.getBoolean(propertyPrefix + ".debug");
 		
-		String debugPropertyName = this.getClass().getName().toLowerCase() + ".debug";
+		batchSize = Integer.getInteger(propertyPrefix + ".batchsize", 1);
 		
-		debug = Boolean.getBoolean(debugPropertyName);
+		commitInterval = 1000L * Integer.getInteger(propertyPrefix + ".commitinterval", 10);
+		
+		incremental = Boolean.parseBoolean(System.getProperty(propertyPrefix + ".incremental", "true"));
+		
+		boolean preload = Boolean.parseBoolean(System.getProperty(propertyPrefix + ".preload", "true"));
+		
+		dialect = pool.getDialect();
+		
+		String createSchemaDefault = dialect == SqlDialect.H2 ? "true" : "false";
+		
+		if (Boolean.parseBoolean(System.getProperty(propertyPrefix + ".createschema", createSchemaDefault)))
+			createSchema();
+		
+		folderIDs = new NameIDCache(pool, "folder", "name", preload);
+		
+		addressIDs = new NameIDCache(pool, "address", "address", preload);
+		
+		if (isBatching())
+			startCommitTimer();
 		
 		debugHandler.setTabular(true);
 		
 		debugHandler.setPrintStream(System.err);
 	}
 	
-	private PreparedStatement pstmtGetFolderIDbyName, pstmtPutNewFolder, pstmtPutMessage, pstmtPutAttachment, pstmtPutRecipient;
-	private PreparedStatement pstmtGetAddressIDbyName, pstmtPutNewAddress;
+	private void createSchema() throws SQLException, IOException {
+		Connection conn = pool.acquire();
+		
+		try {
+			if (dialect.createSchemaIfMissing(conn, "databasemessagehandler-schema", "message"))
+				System.err.println("Created the " + dialect + " tables for the message index");
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	private boolean isBatching() {
+		return batchSize > 1;
+	}
+	
+	@Override
+	public boolean isThreadSafe() {
+		return true;
+	}
 	
-	private void prepareStatements() throws SQLException {
-		String sql = "select id from folder where name = ?";
+	/*
+	 * Commits any batch which has been waiting too long, so that a trickle of messages, as
+	 * from FolderMonitor, still reaches the database promptly.  The timer runs for as long
+	 * as the handler exists, since closing it does not stop other threads from using it.
+	 */
+	private void startCommitTimer() {
+		Timer commitTimer = new Timer("database-commit", true);
 		
-		pstmtGetFolderIDbyName = conn.prepareStatement(sql);
+		commitTimer.schedule(new TimerTask() {
+			public void run() {
+				for (Ingestor ingestor : getIngestors())
+					ingestor.flushIfDue();
+			}
+		}, commitInterval, commitInterval);
+	}
+	
+	private List<Ingestor> getIngestors() {
+		synchronized (ingestors) {
+			return new ArrayList<Ingestor>(ingestors);
+		}
+	}
+	
+	private Ingestor getIngestor() {
+		Ingestor ingestor = threadIngestor.get();
 		
-		sql = "insert into folder(name) values (?)";
+		if (ingestor == null) {
+			ingestor = new Ingestor();
+			
+			threadIngestor.set(ingestor);
+			
+			synchronized (ingestors) {
+				ingestors.add(ingestor);
+			}
+		}
 		
-		pstmtPutNewFolder = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		return ingestor;
+	}
+	
+	/*
+	 * Finds or assigns the IDs of every folder and address used by the records, with one
+	 * lookup per chunk of names rather than one per name.
+	 */
+	private void assignNameIDs(List<MessageRecord> records) throws SQLException {
+		Set<String> folderNames = new HashSet<String>();
+		Set<String> addresses = new HashSet<String>();
 		
-		sql = "select id from address where address = ?";
+		for (MessageRecord record : records) {
+			folderNames.add(record.getFolderName());
+			
+			for (MessageRecord.Recipient recipient : record.getRecipients())
+				addresses.add(recipient.getAddress());
+		}
 		
-		pstmtGetAddressIDbyName = conn.prepareStatement(sql);
+		folderIDs.assign(folderNames);
+		addressIDs.assign(addresses);
+	}
+	
+	@Override
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
 		
-		sql = "insert into address(address) values (?)";
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.SIZE);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		profile.add(UIDFolder.FetchProfileItem.UID);
 		
-		pstmtPutNewAddress = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		return profile;
+	}
+
+	@Override
+	public void handleMessage(Message message) throws MessagingException, IOException {
+		if (debug) {
+			synchronized (debugHandler) {
+				debugHandler.handleMessage(message);
+			}
+		}
 		
-		sql = "insert into message(folder_id, `from`, message_id, sent_date, subject, `size`) values (?,?,?,?,?,?)";
+		Folder folder = message.getFolder();
 		
-		pstmtPutMessage = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+		checkStore(folder);
 		
-		sql = "insert into attachment(message_id, mime_type, filename, `size`) values (?,?,?,?)";
+		getIngestor().add(new MessageRecord(message), selectedFolders.contains(getFolderKey(folder)));
+	}
+	
+	@Override
+	public Message[] selectMessages(Folder folder, Message[] messages) throws MessagingException {
+		if (!incremental || !(folder instanceof UIDFolder))
+			return messages;
 		
-		pstmtPutAttachment = conn.prepareStatement(sql);
+		checkStore(folder);
 		
-		sql = "insert into recipient(message_id, address_id, type) values(?, ?, ?)";
+		return getIngestor().selectNew((UIDFolder)folder, messages);
+	}
+	
+	/*
+	 * Refuses, in incremental mode, a folder from any account but the first one seen.
+	 */
+	private void checkStore(Folder folder) throws MessagingException {
+		if (!incremental)
+			return;
+		
+		String storeKey = getStoreKey(folder);
+		
+		synchronized (this) {
+			if (indexedStore == null)
+				indexedStore = storeKey;
+			else if (!indexedStore.equals(storeKey))
+				throw new MessagingException("The index already holds " + indexedStore + ", and can only hold one account, " +
+						"so " + folder.getFullName() + " on " + storeKey + " must be indexed in a database of its own");
+		}
+	}
+	
+	/*
+	 * Identifies the account which holds the folder, leaving out any password.
+	 */
+	private static String getStoreKey(Folder folder) {
+		URLName url = folder.getStore().getURLName();
 		
-		pstmtPutRecipient = conn.prepareStatement(sql);
+		return url.getProtocol() + "://" + url.getUsername() + "@" + url.getHost() + ":" + url.getPort();
 	}
 	
-	private int getFolderIDbyName(String folderName) throws SQLException {
-		return findOrSetIDbyName(pstmtGetFolderIDbyName, pstmtPutNewFolder, folderIDMap, folderName);
+	private static String getFolderKey(Folder folder) {
+		return getStoreKey(folder) + "/" + folder.getFullName();
 	}
-
-	private int getAddressIDbyName(String address) throws SQLException {
-		return findOrSetIDbyName(pstmtGetAddressIDbyName, pstmtPutNewAddress, addressIDMap, address);
+	
+	/*
+	 * Flushes every thread's batch.  The handler remains usable, since a thread which
+	 * handles another message simply starts a new batch.
+	 */
+	@Override
+	public void close() throws MessagingException {
+		for (Ingestor ingestor : getIngestors())
+			ingestor.close();
 	}
 	
-	private int findOrSetIDbyName(PreparedStatement pstmtLookup, PreparedStatement pstmtSave, Map<String, Integer> nameToIDmap, String name)
-			throws SQLException {
-		if (nameToIDmap.containsKey(name))
-			return nameToIDmap.get(name);
+	/*
+	 * The pending batch of one thread, and the connection and statements which it uses
+	 * whilst writing.  The commit timer may flush the batch from another thread, so every
+	 * method is synchronized.
+	 */
+	private class Ingestor {
+		private Connection conn = null;
+		private PreparedStatement pstmtPutMessage, pstmtPutAttachment, pstmtPutRecipient;
 		
-		pstmtLookup.setString(1, name);
+		private final List<MessageRecord> pendingRecords = new ArrayList<MessageRecord>();
+		private final Set<MessageRecord> selectedRecords = Collections.newSetFromMap(new IdentityHashMap<MessageRecord, Boolean>());
+		private long batchStartTime = 0;
 		
-		ResultSet rs = pstmtLookup.executeQuery();
+		// The account and name of the folder being selected from, and the UIDs already stored
+		// for it, in ascending order.
+		private String selectingFolder = null;
+		private long[] indexedUIDs = null;
 		
-		if (rs.next()) {
-			int ID = rs.getInt(1);
+		private void open() throws SQLException {
+			conn = pool.acquire();
 			
-			rs.close();
+			try {
+				conn.setAutoCommit(false);
+			} catch (SQLException e) {
+				release();
+				throw e;
+			}
+		}
+		
+		/*
+		 * Returns the connection to the pool, which rolls back anything left uncommitted.
+		 */
+		private void release() {
+			try {
+				if (pstmtPutMessage != null) {
+					pstmtPutMessage.close();
+					pstmtPutAttachment.close();
+					pstmtPutRecipient.close();
+				}
+			} catch (SQLException e) {
+				// The connection is being returned to the pool anyway.
+			}
+			
+			pstmtPutMessage = pstmtPutAttachment = pstmtPutRecipient = null;
 			
-			nameToIDmap.put(name, ID);
+			pool.release(conn);
 			
-			return ID;
+			conn = null;
 		}
 		
-		pstmtSave.setString(1, name);
-		
-		int rows = pstmtSave.executeUpdate();
-		
-		if (rows == 1) {
-			rs = pstmtSave.getGeneratedKeys();
+		private void prepareStatements() throws SQLException {
+			String sql;
 			
-			rs.next();
+			sql = "insert into message(folder_id, uidvalidity, uid, " + dialect.quote("from") + ", message_id, sent_date, subject, " +
+					dialect.quote("size") + ") values (?,?,?,?,?,?,?,?)";
 			
-			int ID = rs.getInt(1);
+			pstmtPutMessage = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
 			
-			rs.close();
+			sql = "insert into attachment(message_id, mime_type, filename, " + dialect.quote("size") + ") values (?,?,?,?)";
 			
-			nameToIDmap.put(name, ID);
+			pstmtPutAttachment = conn.prepareStatement(sql);
 			
-			conn.commit();
+			sql = "insert into recipient(message_id, address_id, type) values(?, ?, ?)";
 			
-			return ID;
+			pstmtPutRecipient = conn.prepareStatement(sql);
 		}
 		
-		return -1;
-	}
-	
-	private void putRecipients(int messageID, Address[] recipients, String recipientType) throws SQLException {
-		if (recipients == null)
-			return;
+		/*
+		 * A selected record has already been checked against the stored UIDs by selectNew(),
+		 * so it is not looked up again when the batch is written.
+		 */
+		synchronized void add(MessageRecord record, boolean selected) throws MessagingException {
+			if (pendingRecords.isEmpty())
+				batchStartTime = System.currentTimeMillis();
+			
+			pendingRecords.add(record);
+			
+			if (selected)
+				selectedRecords.add(record);
+			
+			if (pendingRecords.size() >= batchSize || System.currentTimeMillis() - batchStartTime >= commitInterval)
+				flush();
+		}
 		
-		for (Address address : recipients) {
-			if (address != null) {
-				pstmtPutRecipient.setInt(1, messageID);
+		synchronized void flushIfDue() {
+			if (!pendingRecords.isEmpty() && System.currentTimeMillis() - batchStartTime >= commitInterval)
+				flushQuietly();
+		}
+		
+		/*
+		 * Writes the pending messages as one transaction.  If that fails, the transaction is
+		 * rolled back and each message is written again in a transaction of its own, so that
+		 * one bad message costs only itself rather than the whole batch.
+		 */
+		synchronized void flush() throws MessagingException {
+			if (pendingRecords.isEmpty())
+				return;
+			
+			List<MessageRecord> records = new ArrayList<MessageRecord>(pendingRecords);
+			
+			pendingRecords.clear();
+			
+			try {
+				storeOrRetry(records);
+			} finally {
+				selectedRecords.clear();
+			}
+		}
+		
+		private void storeOrRetry(List<MessageRecord> records) throws MessagingException {
+			try {
+				store(records);
+				return;
+			} catch (SQLException e) {
+				if (records.size() == 1)
+					reportFailure(records.get(0));
+				else
+					System.err.println("Failed to store a batch of " + records.size() + " messages, so storing them one at a time");
 				
-				int addressID = getAddressIDbyName(((InternetAddress)address).getAddress());
+				e.printStackTrace();
+			}
 			
-				pstmtPutRecipient.setInt(2, addressID);
+			if (records.size() == 1)
+				return;
+			
+			for (MessageRecord record : records) {
+				try {
+					store(Collections.singletonList(record));
+				} catch (SQLException e) {
+					reportFailure(record);
+					
+					e.printStackTrace();
+				}
+			}
+		}
+		
+		/*
+		 * Writes the records and commits them, on a connection which is taken from the pool
+		 * for the purpose and returned afterwards.
+		 */
+		private void store(List<MessageRecord> records) throws SQLException, MessagingException {
+			// The name caches take a connection of their own, so this must come first.
+			assignNameIDs(records);
 			
-				pstmtPutRecipient.setString(3, recipientType);
+			open();
 			
-				pstmtPutRecipient.executeUpdate();
+			try {
+				if (incremental)
+					records = removeIndexedRecords(records);
+				
+				if (!records.isEmpty())
+					write(records);
+				
+				conn.commit();
+			} catch (SQLException e) {
+				rollback();
+				
+				checkConnection();
+				
+				throw e;
+			} finally {
+				release();
 			}
 		}
-	}
-
-	private String getMessageID(Message message) throws MessagingException, IOException {
-		String msgid = (message instanceof MimeMessage) ? ((MimeMessage)message).getMessageID() : null;
-
-		if (msgid == null)
-			return null;
-
-		if (msgid.startsWith("<") && msgid.endsWith(">"))
-			msgid = msgid.substring(1, msgid.length()-1);
-
-		return msgid;
-	}
-
-	@Override
-	public void handleMessage(Message message) throws MessagingException, IOException {
-		if (debug)
-			debugHandler.handleMessage(message);
 		
-		try {
-			Folder folder = message.getFolder();
+		/*
+		 * The messages go first as a single batch, and the keys generated for them, which the
+		 * driver returns in the same order, are used to link the recipients and attachments.
+		 */
+		private void write(List<MessageRecord> records) throws SQLException {
+			prepareStatements();
+			
+			for (MessageRecord record : records) {
+				setMessageParameters(record);
+				pstmtPutMessage.addBatch();
+			}
 			
-			int folderID = getFolderIDbyName(folder.getFullName());
+			pstmtPutMessage.executeBatch();
 			
-			Address[] from_list = message.getFrom();
+			ResultSet rs = pstmtPutMessage.getGeneratedKeys();
 			
-			InternetAddress from = from_list == null ? null : ((InternetAddress[])from_list)[0];
+			for (MessageRecord record : records) {
+				if (!rs.next())
+					throw new SQLException("Expected " + records.size() + " generated keys for the batch of messages");
+				
+				int messageID = rs.getInt(1);
+				
+				putRecipients(messageID, record);
+				
+				putAttachments(messageID, record);
+			}
 			
-			Address[] toRecipients = message.getRecipients(RecipientType.TO);
+			rs.close();
 			
-			Address[] ccRecipients = message.getRecipients(RecipientType.CC);
+			pstmtPutRecipient.executeBatch();
 			
-			Address[] bccRecipients = message.getRecipients(RecipientType.BCC);
-
-			String msgid = getMessageID(message);
+			pstmtPutAttachment.executeBatch();
+		}
+		
+		/*
+		 * Returns the records whose UIDs are not already in the database, leaving out any
+		 * which repeat an earlier record in the batch, with one query per folder for the
+		 * records which were not selected.
+		 */
+		private List<MessageRecord> removeIndexedRecords(List<MessageRecord> records) throws SQLException {
+			Map<String, Set<Long>> batchUIDs = new LinkedHashMap<String, Set<Long>>();
+			
+			for (MessageRecord record : records) {
+				if (record.getUID() < 0 || selectedRecords.contains(record))
+					continue;
+				
+				String key = record.getFolderName() + "\t" + record.getUIDValidity();
+				
+				Set<Long> uids = batchUIDs.get(key);
+				
+				if (uids == null) {
+					uids = new HashSet<Long>();
+					batchUIDs.put(key, uids);
+				}
+				
+				uids.add(record.getUID());
+			}
 			
-			Date sentDate = message.getSentDate();
+			Set<String> indexed = new HashSet<String>();
 			
-			String subject = message.getSubject();
+			for (Map.Entry<String, Set<Long>> entry : batchUIDs.entrySet()) {
+				String key = entry.getKey();
+				int tab = key.lastIndexOf('\t');
+				
+				StringBuilder sql = new StringBuilder("select uid from message where folder_id = ? and uidvalidity = ? and uid in (");
+				
+				for (int i = 0; i < entry.getValue().size(); i++)
+					sql.append(i == 0 ? "?" : ",?");
+				
+				sql.append(")");
+				
+				PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+				
+				int index = 1;
+				
+				pstmt.setInt(index++, folderIDs.getID(key.substring(0, tab)));
+				pstmt.setLong(index++, Long.parseLong(key.substring(tab + 1)));
+				
+				for (long uid : entry.getValue())
+					pstmt.setLong(index++, uid);
+				
+				ResultSet rs = pstmt.executeQuery();
+				
+				while (rs.next())
+					indexed.add(key + "\t" + rs.getLong(1));
+				
+				rs.close();
+				pstmt.close();
+			}
 			
-			int size = (message instanceof MimeMessage) ? ((MimeMessage)message).getSize() : -1;
+			List<MessageRecord> remaining = new ArrayList<MessageRecord>();
 			
-			pstmtPutMessage.setInt(1, folderID);
+			for (MessageRecord record : records)
+				if (record.getUID() < 0 || indexed.add(record.getFolderName() + "\t" + record.getUIDValidity() + "\t" + record.getUID()))
+					remaining.add(record);
 			
-			pstmtPutMessage.setString(2, from == null ? "NULL" : from.getAddress());
-
-			if (msgid == null)
-				pstmtPutMessage.setNull(3, Types.VARCHAR);
-			else
-				pstmtPutMessage.setString(3, msgid);
-
-			if (sentDate == null)
-				pstmtPutMessage.setNull(4, Types.TIMESTAMP);
-			else
-				pstmtPutMessage.setTimestamp(4, new Timestamp(sentDate.getTime()));
+			return remaining;
+		}
+		
+		/*
+		 * Returns the messages whose UIDs are not yet in the database.  The first time a
+		 * folder is seen, the stored messages which are no longer in it are deleted, along
+		 * with their recipients and attachments, before its stored UIDs are loaded.
+		 */
+		synchronized Message[] selectNew(UIDFolder folder, Message[] messages) throws MessagingException {
+			String folderName = ((Folder)folder).getFullName();
+			String folderKey = getFolderKey((Folder)folder);
+			
+			try {
+				if (!folderKey.equals(selectingFolder)) {
+					flush();
+					
+					int folderID = folderIDs.getID(folderName);
+					
+					open();
+					
+					try {
+						indexedUIDs = synchronizeFolder(folder, folderID, folderName);
+					} catch (SQLException e) {
+						rollback();
+						
+						checkConnection();
+						
+						throw e;
+					} finally {
+						release();
+					}
+					
+					selectingFolder = folderKey;
+					selectedFolders.add(folderKey);
+				}
+				
+				FetchProfile profile = new FetchProfile();
+				profile.add(UIDFolder.FetchProfileItem.UID);
+				
+				((Folder)folder).fetch(messages, profile);
 				
-			pstmtPutMessage.setString(5, subject);
+				List<Message> selected = new ArrayList<Message>();
+				
+				for (Message message : messages)
+					if (Arrays.binarySearch(indexedUIDs, folder.getUID(message)) < 0)
+						selected.add(message);
+				
+				return selected.toArray(new Message[selected.size()]);
+			} catch (SQLException e) {
+				e.printStackTrace();
+				
+				// Every message is returned, so they must all be checked when they are stored.
+				selectedFolders.remove(folderKey);
+				selectingFolder = null;
+				
+				return messages;
+			}
+		}
+		
+		private long[] synchronizeFolder(UIDFolder folder, int folderID, String folderName) throws SQLException, MessagingException {
+			long uidValidity = folder.getUIDValidity();
+			
+			PreparedStatement pstmt = conn.prepareStatement("delete from message where folder_id = ? and (uidvalidity is null or uidvalidity <> ?)");
+			
+			pstmt.setInt(1, folderID);
+			pstmt.setLong(2, uidValidity);
+			
+			int reset = pstmt.executeUpdate();
+			
+			pstmt.close();
+			
+			long[] stored = loadIndexedUIDs(folderID, uidValidity);
+			
+			// UID FETCH 1:* returns every UID in the folder in a single command.
+			Message[] current = folder.getMessagesByUID(1, UIDFolder.MAXUID);
+			
+			long[] present = new long[current.length];
+			
+			for (int i = 0; i < current.length; i++)
+				present[i] = folder.getUID(current[i]);
 			
-			pstmtPutMessage.setInt(6, size);
+			Arrays.sort(present);
 			
-			int rows = pstmtPutMessage.executeUpdate();
+			pstmt = conn.prepareStatement("delete from message where folder_id = ? and uidvalidity = ? and uid = ?");
 			
-			int messageID = -1;
+			int expunged = 0;
+			int kept = 0;
 			
-			if (rows == 1) {
-				ResultSet rs = pstmtPutMessage.getGeneratedKeys();
+			for (long uid : stored) {
+				if (Arrays.binarySearch(present, uid) >= 0) {
+					stored[kept++] = uid;
+					continue;
+				}
 				
-				rs.next();
+				pstmt.setInt(1, folderID);
+				pstmt.setLong(2, uidValidity);
+				pstmt.setLong(3, uid);
+				pstmt.addBatch();
 				
-				messageID = rs.getInt(1);
+				if (++expunged % 1000 == 0)
+					pstmt.executeBatch();
+			}
+			
+			pstmt.executeBatch();
+			pstmt.close();
+			
+			conn.commit();
+			
+			if (debug && (reset > 0 || expunged > 0))
+				System.err.println("Folder " + folderName + " : removed " + reset + " messages with an old UIDVALIDITY and " + expunged + " expunged messages");
+			
+			return Arrays.copyOf(stored, kept);
+		}
+		
+		private long[] loadIndexedUIDs(int folderID, long uidValidity) throws SQLException {
+			PreparedStatement pstmt = conn.prepareStatement("select uid from message where folder_id = ? and uidvalidity = ? order by uid");
+			
+			pstmt.setInt(1, folderID);
+			pstmt.setLong(2, uidValidity);
+			pstmt.setFetchSize(10000);
+			
+			long[] uids = new long[1024];
+			int count = 0;
+			
+			ResultSet rs = pstmt.executeQuery();
+			
+			while (rs.next()) {
+				if (count == uids.length)
+					uids = Arrays.copyOf(uids, count * 2);
 				
-				rs.close();
+				uids[count++] = rs.getLong(1);
 			}
 			
-			Object content = null;
+			rs.close();
+			pstmt.close();
 			
+			return Arrays.copyOf(uids, count);
+		}
+		
+		private void reportFailure(MessageRecord record) {
+			System.err.println("Failed to store message " + record.getMessageID() + " from " + record.getFrom() +
+					" in " + record.getFolderName());
+		}
+		
+		private void flushQuietly() {
 			try {
-				content = message.getContent();
-			} catch (UnsupportedEncodingException uex) {
-				InputStream is = message.getInputStream();
-
-				byte[] contentBytes = is.readAllBytes();
-
-				content = new String(contentBytes);
+				flush();
+			} catch (MessagingException e) {
+				e.printStackTrace();
 			}
-
-			putRecipients(messageID, toRecipients, "TO");
+		}
+		
+		private void setMessageParameters(MessageRecord record) throws SQLException {
+			int folderID = folderIDs.getID(record.getFolderName());
 			
-			putRecipients(messageID, ccRecipients, "CC");
+			String from = record.getFrom();
+			String msgid = record.getMessageID();
+			Date sentDate = record.getSentDate();
 			
-			putRecipients(messageID, bccRecipients, "BCC");
+			pstmtPutMessage.setInt(1, folderID);
+			
+			if (record.getUID() < 0) {
+				pstmtPutMessage.setNull(2, Types.BIGINT);
+				pstmtPutMessage.setNull(3, Types.BIGINT);
+			} else {
+				pstmtPutMessage.setLong(2, record.getUIDValidity());
+				pstmtPutMessage.setLong(3, record.getUID());
+			}
 			
-			if (content instanceof Multipart) {
-				Multipart mp = (Multipart)content;
+			pstmtPutMessage.setString(4, from == null ? "NULL" : from);
+	
+			if (msgid == null)
+				pstmtPutMessage.setNull(5, Types.VARCHAR);
+			else
+				pstmtPutMessage.setString(5, msgid);
+	
+			if (sentDate == null)
+				pstmtPutMessage.setNull(6, Types.TIMESTAMP);
+			else
+				pstmtPutMessage.setTimestamp(6, new Timestamp(sentDate.getTime()));
 				
-				int parts = mp.getCount();
+			pstmtPutMessage.setString(7, record.getSubject());
+			
+			pstmtPutMessage.setInt(8, record.getSize());
+		}
+		
+		/*
+		 * Adds the recipients to the current batch of the recipient statement.
+		 */
+		private void putRecipients(int messageID, MessageRecord record) throws SQLException {
+			for (MessageRecord.Recipient recipient : record.getRecipients()) {
+				pstmtPutRecipient.setInt(1, messageID);
+				pstmtPutRecipient.setInt(2, addressIDs.getID(recipient.getAddress()));
+				pstmtPutRecipient.setString(3, recipient.getType());
 				
-				for (int j = 0; j < parts; j++) {
-					Part part = mp.getBodyPart(j);
-					
-					String contentType = part.getContentType();
-					
-					String mimeType = contentType.split(";")[0].strip();
-					
-					String filename = part.getFileName();
-					
-					size = part.getSize();
-					
-					// Hack for multipart/alternative parts generated by Mac Mail
-					if (size < 0)
-						size = 0;
-					
-					pstmtPutAttachment.setInt(1, messageID);
-					pstmtPutAttachment.setString(2, mimeType);
-					pstmtPutAttachment.setString(3, filename);
-					pstmtPutAttachment.setInt(4, size);
-					
-					pstmtPutAttachment.executeUpdate();
-				}
+				pstmtPutRecipient.addBatch();
 			}
+		}
+		
+		/*
+		 * Adds the attachments to the current batch of the attachment statement.
+		 */
+		private void putAttachments(int messageID, MessageRecord record) throws SQLException {
+			for (MessageRecord.Attachment attachment : record.getAttachments()) {
+				pstmtPutAttachment.setInt(1, messageID);
+				pstmtPutAttachment.setString(2, attachment.getMimeType());
+				pstmtPutAttachment.setString(3, attachment.getFilename());
+				pstmtPutAttachment.setInt(4, attachment.getSize());
+				
+				pstmtPutAttachment.addBatch();
+			}
+		}
+		
+		/*
+		 * Abandons the current transaction.  Any names it used were committed separately by
+		 * the name caches, so they stay valid.
+		 */
+		private void rollback() throws MessagingException {
+			if (conn == null)
+				return;
 			
-			conn.commit();
-		} catch (SQLException e) {
-			if (!debug)
-				debugHandler.handleMessage(message);
-			
-			e.printStackTrace();
+			try {
+				conn.rollback();
+			} catch (SQLException e) {
+				throw new MessagingException("An SQLException occurred whilst rolling back a transaction", e);
+			}
+		}
+		
+		private void checkConnection() throws MessagingException {
+			if (conn == null)
+				return;
 			
 			try {
 				if (!conn.isValid(5)) {
@@ -310,5 +822,12 @@ public class DatabaseMessageHandler implements MessageHandler {
 				throw new MessagingException("An SQLException occurred whilst handling a previous SQLException", e2);
 			}
 		}
+		
+		synchronized void close() throws MessagingException {
+			flush();
+			
+			selectingFolder = null;
+			indexedUIDs = null;
+		}
 	}
 }
@@ -29,6 +29,7 @@ import java.io.PrintStream;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import javax.mail.FetchProfile;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -58,6 +59,15 @@ public class DumpPlainTextAttachmentHandler implements MessageHandler {
 		}
 	}
 
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		
+		return profile;
+	}
+
 	public void handleMessage(Message message) throws MessagingException, IOException {
 		Part body = getPlainTextAttachment(message);
 		
@@ -95,6 +105,9 @@ public class DumpPlainTextAttachmentHandler implements MessageHandler {
 		MimeMessage mimeMessage = (MimeMessage)message;
 		
 		try {
+			if (!mimeMessage.isMimeType("multipart/*"))
+				return null;
+			
 			Object content = mimeMessage.getContent();
 			
 			if (content instanceof Multipart) {
@@ -0,0 +1,237 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool.messagehandler;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/*
+ * The details of a message which are stored in the database: the folder, UIDVALIDITY and
+ * UID, sender, dates and subject, the recipients, and the type, name and size of each
+ * attachment.  The UIDVALIDITY and UID are -1 if the folder does not have UIDs.
+ * 
+ * Everything is read from the message when the record is created, so that the database
+ * work can be done later, or on another thread, without going back to the mail server.
+ */
+public class MessageRecord {
+	private final String folderName;
+	private final long uidValidity;
+	private final long uid;
+	private final String from;
+	private final String messageID;
+	private final Date sentDate;
+	private final String subject;
+	private final int size;
+	private final List<Recipient> recipients = new ArrayList<Recipient>();
+	private final List<Attachment> attachments = new ArrayList<Attachment>();
+	
+	public MessageRecord(Message message) throws MessagingException, IOException {
+		Folder folder = message.getFolder();
+		
+		folderName = folder.getFullName();
+		
+		if (folder instanceof UIDFolder) {
+			uidValidity = ((UIDFolder)folder).getUIDValidity();
+			uid = ((UIDFolder)folder).getUID(message);
+		} else {
+			uidValidity = -1;
+			uid = -1;
+		}
+		
+		Address[] fromList = message.getFrom();
+		
+		from = fromList == null ? null : ((InternetAddress)fromList[0]).getAddress();
+		
+		messageID = getMessageID(message);
+		
+		sentDate = message.getSentDate();
+		
+		subject = message.getSubject();
+		
+		size = (message instanceof MimeMessage) ? ((MimeMessage)message).getSize() : -1;
+		
+		addRecipients(message.getRecipients(RecipientType.TO), "TO");
+		
+		addRecipients(message.getRecipients(RecipientType.CC), "CC");
+		
+		addRecipients(message.getRecipients(RecipientType.BCC), "BCC");
+		
+		// Attachments are only recorded for multipart messages, whose parts can be
+		// listed from the MIME structure without downloading the message body.
+		Object content = null;
+		
+		if (message.isMimeType("multipart/*")) {
+			try {
+				content = message.getContent();
+			} catch (UnsupportedEncodingException uex) {
+				content = null;
+			}
+		}
+		
+		if (content instanceof Multipart) {
+			Multipart mp = (Multipart)content;
+			
+			int parts = mp.getCount();
+			
+			for (int j = 0; j < parts; j++) {
+				Part part = mp.getBodyPart(j);
+				
+				String mimeType = part.getContentType().split(";")[0].strip();
+				
+				int partSize = part.getSize();
+				
+				// Hack for multipart/alternative parts generated by Mac Mail
+				if (partSize < 0)
+					partSize = 0;
+				
+				attachments.add(new Attachment(mimeType, part.getFileName(), partSize));
+			}
+		}
+	}
+	
+	private void addRecipients(Address[] addresses, String type) {
+		if (addresses == null)
+			return;
+		
+		for (Address address : addresses)
+			if (address != null)
+				recipients.add(new Recipient(type, ((InternetAddress)address).getAddress()));
+	}
+
+	private static String getMessageID(Message message) throws MessagingException {
+		String msgid = (message instanceof MimeMessage) ? ((MimeMessage)message).getMessageID() : null;
+
+		if (msgid == null)
+			return null;
+
+		if (msgid.startsWith("<") && msgid.endsWith(">"))
+			msgid = msgid.substring(1, msgid.length()-1);
+
+		return msgid;
+	}
+	
+	public String getFolderName() {
+		return folderName;
+	}
+	
+	public long getUIDValidity() {
+		return uidValidity;
+	}
+	
+	public long getUID() {
+		return uid;
+	}
+	
+	/*
+	 * Returns the address of the first sender, or null if there is none.
+	 */
+	public String getFrom() {
+		return from;
+	}
+	
+	public String getMessageID() {
+		return messageID;
+	}
+	
+	public Date getSentDate() {
+		return sentDate;
+	}
+	
+	public String getSubject() {
+		return subject;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public List<Recipient> getRecipients() {
+		return Collections.unmodifiableList(recipients);
+	}
+	
+	public List<Attachment> getAttachments() {
+		return Collections.unmodifiableList(attachments);
+	}
+	
+	public static class Recipient {
+		private final String type;
+		private final String address;
+		
+		Recipient(String type, String address) {
+			this.type = type;
+			this.address = address;
+		}
+		
+		/*
+		 * One of TO, CC or BCC.
+		 */
+		public String getType() {
+			return type;
+		}
+		
+		public String getAddress() {
+			return address;
+		}
+	}
+	
+	public static class Attachment {
+		private final String mimeType;
+		private final String filename;
+		private final int size;
+		
+		Attachment(String mimeType, String filename, int size) {
+			this.mimeType = mimeType;
+			this.filename = filename;
+			this.size = size;
+		}
+		
+		public String getMimeType() {
+			return mimeType;
+		}
+		
+		public String getFilename() {
+			return filename;
+		}
+		
+		public int getSize() {
+			return size;
+		}
+	}
+}
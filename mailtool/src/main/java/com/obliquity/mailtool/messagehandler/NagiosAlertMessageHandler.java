@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.mail.FetchProfile;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 
@@ -45,6 +46,14 @@ public class NagiosAlertMessageHandler implements MessageHandler {
 	
 	private final Pattern pattern = Pattern.compile("([A-Z]+)\\s+([A-Za-z]+)\\sAlert\\s+-\\s+([\\w\\-/ :\\.]+)\\sis\\s([A-Z]+)$");
 	
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.ENVELOPE);
+		
+		return profile;
+	}
+	
 	public void handleMessage(Message message) throws MessagingException {
 		Date sentDate = message.getSentDate();
 		String subject = message.getSubject();
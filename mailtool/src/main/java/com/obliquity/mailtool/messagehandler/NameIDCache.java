@@ -0,0 +1,326 @@
+/*
+ * mailtool - a package for processing IMAP mail folders
+ *
+ * Copyright (C) 2017 David Harper at obliquity.com
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA  02111-1307, USA.
+ *
+ * See the COPYING file located in the top-level-directory of
+ * the archive of this library for complete text of license.
+ */
+
+package com.obliquity.mailtool.messagehandler;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.obliquity.database.DatabaseConnectionPool;
+
+/*
+ * Maps the names in a lookup table, such as folder or address, to their IDs without a
+ * round trip to the database for each name.
+ * 
+ * Either the whole table is loaded when the cache is created, or names are looked up in
+ * chunks of LOOKUP_CHUNK_SIZE with a single SELECT ... IN (...) per chunk.  A name which is
+ * not in the table is given the next ID after the largest one in use, and assign() inserts
+ * the new names as one batch and commits them straight away on a connection of its own,
+ * which is taken from the pool for each lookup and returned straight afterwards.  Several
+ * threads may therefore share one cache, and rows which refer to a name never point at an
+ * uncommitted row in another thread's transaction.  If the caller's own transaction is
+ * rolled back afterwards, the names simply stay in the table unused.
+ * 
+ * Looking up a known name takes no lock, so a thread which holds a connection of its own
+ * can always get the IDs it has assigned.  Only the assignment of new names is done one
+ * thread at a time, and the connection for it is taken from the pool before the cache is
+ * locked, so the cache is never locked by a thread which is waiting for the pool.
+ * 
+ * This assumes that nothing else inserts into the table while the cache is in use.  If an
+ * insert fails all the same, the next ID is read from the table again, and the names are
+ * looked up in case they were added by someone else.
+ * 
+ * The cache folds case itself, but the schema's collation also treats names as equal
+ * which differ in other ways, such as accents or trailing spaces.  Such a name misses the
+ * cache and fails to insert, so after a failure each name is looked up on its own, and
+ * the spelling which was asked for is mapped to the ID of the row which the database
+ * considers equal to it.
+ */
+public class NameIDCache {
+	private static final int LOOKUP_CHUNK_SIZE = 1000;
+	
+	private final DatabaseConnectionPool pool;
+	private final String table;
+	private final String column;
+	private final boolean preloaded;
+	
+	private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	
+	private int nextID;
+	
+	public NameIDCache(DatabaseConnectionPool pool, String table, String column, boolean preload) throws SQLException {
+		this.pool = pool;
+		this.table = table;
+		this.column = column;
+		this.preloaded = preload;
+		
+		Connection conn = acquire();
+		
+		try {
+			nextID = readNextID(conn);
+			
+			if (preload) {
+				Statement stmt = conn.createStatement();
+				
+				stmt.setFetchSize(10000);
+				
+				ResultSet rs = stmt.executeQuery("select id, " + column + " from " + table);
+				
+				while (rs.next())
+					ids.put(getKey(rs.getString(2)), rs.getInt(1));
+				
+				rs.close();
+				stmt.close();
+			}
+			
+			conn.commit();
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	private Connection acquire() throws SQLException {
+		Connection conn = pool.acquire();
+		
+		try {
+			conn.setAutoCommit(false);
+		} catch (SQLException e) {
+			pool.release(conn);
+			throw e;
+		}
+		
+		return conn;
+	}
+	
+	private int readNextID(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		
+		ResultSet rs = stmt.executeQuery("select max(id) from " + table);
+		
+		int id = rs.next() ? rs.getInt(1) + 1 : 1;
+		
+		rs.close();
+		stmt.close();
+		
+		return id;
+	}
+	
+	private static String getKey(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+	
+	public int size() {
+		return ids.size();
+	}
+	
+	/*
+	 * Makes sure that every one of the names has an ID which has been committed to the
+	 * table, looking up the unknown names in chunks and inserting the new ones as a
+	 * single batch.
+	 */
+	public void assign(Collection<String> names) throws SQLException {
+		Set<String> unknown = new LinkedHashSet<String>();
+		
+		for (String name : names)
+			if (!ids.containsKey(getKey(name)))
+				unknown.add(name);
+		
+		if (unknown.isEmpty())
+			return;
+		
+		Connection conn = acquire();
+		
+		try {
+			synchronized (this) {
+				// Another thread may have assigned some of them whilst this one waited.
+				unknown.removeIf(name -> ids.containsKey(getKey(name)));
+				
+				if (!preloaded && !unknown.isEmpty())
+					resolve(conn, unknown);
+				
+				Map<String, String> newNames = new LinkedHashMap<String, String>();
+				
+				for (String name : unknown)
+					if (!ids.containsKey(getKey(name)))
+						newNames.putIfAbsent(getKey(name), name);
+				
+				if (!newNames.isEmpty())
+					insert(conn, newNames.values());
+			}
+		} finally {
+			pool.release(conn);
+		}
+	}
+	
+	private void resolve(Connection conn, Collection<String> names) throws SQLException {
+		List<String> chunk = new ArrayList<String>(LOOKUP_CHUNK_SIZE);
+		
+		for (String name : names) {
+			chunk.add(name);
+			
+			if (chunk.size() == LOOKUP_CHUNK_SIZE) {
+				lookup(conn, chunk);
+				chunk.clear();
+			}
+		}
+		
+		if (!chunk.isEmpty())
+			lookup(conn, chunk);
+		
+		conn.commit();
+	}
+	
+	private void lookup(Connection conn, List<String> names) throws SQLException {
+		StringBuilder sql = new StringBuilder("select id, " + column + " from " + table + " where " + column + " in (");
+		
+		for (int i = 0; i < names.size(); i++)
+			sql.append(i == 0 ? "?" : ",?");
+		
+		sql.append(")");
+		
+		PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+		
+		for (int i = 0; i < names.size(); i++)
+			pstmt.setString(i + 1, names.get(i));
+		
+		ResultSet rs = pstmt.executeQuery();
+		
+		while (rs.next())
+			ids.put(getKey(rs.getString(2)), rs.getInt(1));
+		
+		rs.close();
+		pstmt.close();
+	}
+	
+	/*
+	 * Inserts the new names and commits them.  Their IDs are only recorded once the commit
+	 * has succeeded.  After a failure, the cache catches up with the table, so that the
+	 * next attempt neither reuses an ID which is taken nor inserts a name twice.
+	 */
+	private void insert(Connection conn, Collection<String> names) throws SQLException {
+		int firstID = nextID;
+		int id = firstID;
+		
+		PreparedStatement pstmtInsert = conn.prepareStatement("insert into " + table + "(id, " + column + ") values (?,?)");
+		
+		try {
+			for (String name : names) {
+				pstmtInsert.setInt(1, id++);
+				pstmtInsert.setString(2, name);
+				pstmtInsert.addBatch();
+			}
+			
+			pstmtInsert.executeBatch();
+			
+			conn.commit();
+		} catch (SQLException e) {
+			List<String> missing;
+			
+			try {
+				conn.rollback();
+				
+				nextID = readNextID(conn);
+				
+				missing = lookupEach(conn, names);
+			} catch (SQLException e2) {
+				e.addSuppressed(e2);
+				throw e;
+			}
+			
+			// Try again only if the failure has been explained, so that this cannot loop.
+			if (missing.size() == names.size() && nextID == firstID)
+				throw e;
+			
+			if (!missing.isEmpty())
+				insert(conn, missing);
+			
+			return;
+		} finally {
+			pstmtInsert.close();
+		}
+		
+		id = firstID;
+		
+		for (String name : names)
+			ids.put(getKey(name), id++);
+		
+		nextID = id;
+	}
+	
+	/*
+	 * Looks up each name by itself, so that the database's own comparison decides which
+	 * row it matches, and returns the names which are not in the table.
+	 */
+	private List<String> lookupEach(Connection conn, Collection<String> names) throws SQLException {
+		List<String> missing = new ArrayList<String>();
+		
+		PreparedStatement pstmt = conn.prepareStatement("select id from " + table + " where " + column + " = ?");
+		
+		for (String name : names) {
+			pstmt.setString(1, name);
+			
+			ResultSet rs = pstmt.executeQuery();
+			
+			if (rs.next())
+				ids.put(getKey(name), rs.getInt(1));
+			else
+				missing.add(name);
+			
+			rs.close();
+		}
+		
+		pstmt.close();
+		
+		conn.commit();
+		
+		return missing;
+	}
+	
+	/*
+	 * Returns the ID of the name, assigning one if need be.  Callers with many names
+	 * should pass them all to assign() first.
+	 */
+	public int getID(String name) throws SQLException {
+		Integer id = ids.get(getKey(name));
+		
+		if (id == null) {
+			assign(List.of(name));
+			id = ids.get(getKey(name));
+		}
+		
+		return id;
+	}
+}
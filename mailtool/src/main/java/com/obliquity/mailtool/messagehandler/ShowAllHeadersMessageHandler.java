@@ -27,13 +27,23 @@ package com.obliquity.mailtool.messagehandler;
 import java.io.IOException;
 import java.util.Enumeration;
 
+import javax.mail.FetchProfile;
 import javax.mail.Header;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 
 import com.obliquity.mailtool.MessageHandler;
+import com.sun.mail.imap.IMAPFolder;
 
 public class ShowAllHeadersMessageHandler implements MessageHandler {
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(IMAPFolder.FetchProfileItem.HEADERS);
+		
+		return profile;
+	}
+	
 	public void handleMessage(Message message) throws MessagingException, IOException {
 		System.out.println("================================================================================");
 		
@@ -30,6 +30,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import javax.mail.Address;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -69,6 +70,17 @@ public class SimpleMessageHandler implements MessageHandler {
 		return ps;
 	}
 	
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.ENVELOPE);
+		profile.add(FetchProfile.Item.FLAGS);
+		profile.add(FetchProfile.Item.SIZE);
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		
+		return profile;
+	}
+	
 	public void handleMessage(Message message) throws MessagingException, IOException {
 		if (tabular)
 			displayMessageInTabularFormat(message);
@@ -107,6 +119,11 @@ public class SimpleMessageHandler implements MessageHandler {
 	}
 	
 	private void displayAttachmentsInTabularFormat(MimeMessage message) throws MessagingException, IOException {
+		// Only a multipart message has attachments, and its parts can be listed from the
+		// MIME structure alone, without downloading the message body.
+		if (!message.isMimeType("multipart/*"))
+			return;
+		
 		Object content = message.getContent();
 		
 		if (content instanceof Multipart) {
@@ -171,7 +188,7 @@ public class SimpleMessageHandler implements MessageHandler {
 			int messageSize = msg.getSize();
 			ps.println("Size:    " + messageSize);
 
-			Object content = message.getContent();
+			Object content = (showContent || msg.isMimeType("multipart/*")) ? message.getContent() : null;
 			
 			if (content instanceof Multipart) {
 				Multipart mp = (Multipart)content;
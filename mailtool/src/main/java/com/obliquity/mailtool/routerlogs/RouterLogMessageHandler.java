@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
 
+import javax.mail.FetchProfile;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -38,10 +39,18 @@ import com.obliquity.mailtool.MessageHandler;
 public class RouterLogMessageHandler implements MessageHandler {
 	private RouterLogParser parser = new RouterLogParser();
 	
+	public FetchProfile getFetchProfile() {
+		FetchProfile profile = new FetchProfile();
+		
+		profile.add(FetchProfile.Item.CONTENT_INFO);
+		
+		return profile;
+	}
+	
 	public void handleMessage(Message message) throws MessagingException, IOException {
 		InputStream is = null;
 		
-		Object content = message.getContent();
+		Object content = message.isMimeType("multipart/*") ? message.getContent() : null;
 		
 		if (content instanceof Multipart) {
 			Multipart mp = (Multipart)content;